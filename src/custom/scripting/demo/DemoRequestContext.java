@@ -46,6 +46,7 @@ public class DemoRequestContext {
 		rc.setStatusText("Idemo dalje");
 		// Only at this point will header be created and written...
 		rc.write("Čevapčići i Šiščevapčići.");
+		rc.finish();
 		os.close();
 	}
 
@@ -70,6 +71,7 @@ public class DemoRequestContext {
 		rc.addRCCookie(new RCCookie("zgrada", "B4", null, null, "/"));
 		// Only at this point will header be created and written...
 		rc.write("Čevapčići i Šiščevapčići.");
+		rc.finish();
 		os.close();
 	}
 }
\ No newline at end of file
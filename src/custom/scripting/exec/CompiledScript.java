@@ -0,0 +1,18 @@
+package custom.scripting.exec;
+
+import webserver.RequestContext;
+
+/**
+ * Smart script prepared for execution. Script is immutable, so the same
+ * script can be executed by many requests at the same time.
+ * @author Dario Vidas
+ *
+ */
+public interface CompiledScript {
+
+	/**
+	 * Executes script, writing its output to given request context.
+	 * @param requestContext request context
+	 */
+	void execute(RequestContext requestContext);
+}
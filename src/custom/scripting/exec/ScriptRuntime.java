@@ -0,0 +1,216 @@
+package custom.scripting.exec;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+
+import webserver.RequestContext;
+
+/**
+ * Operations called by compiled smart scripts. Every operation does exactly
+ * what {@link SmartScriptEngine} does for the same token, but takes values
+ * directly instead of popping them from stack. Arguments are in stack order,
+ * the last argument is the top of stack.
+ * @author Dario Vidas
+ *
+ */
+final class ScriptRuntime {
+
+	/**
+	 * Disabled constructor.
+	 */
+	private ScriptRuntime() {
+	}
+
+	/**
+	 * Writes text node. Text is written as bytes coded in advance, unless
+	 * request context codes strings with other charset.
+	 * @param requestContext request context
+	 * @param bytes text coded with <code>UTF-8</code>
+	 * @param text text
+	 */
+	static void text(RequestContext requestContext, byte[] bytes, String text) {
+		try {
+			if (StandardCharsets.UTF_8.equals(requestContext.getCharset())) {
+				requestContext.write(bytes);
+			} else {
+				requestContext.write(text);
+			}
+		} catch (IOException e) {
+			System.err.println("Text node writing exception.");
+		}
+	}
+
+	/**
+	 * Writes output of echo node.
+	 * @param value concatenated values left on stack
+	 * @param requestContext request context
+	 */
+	static void echo(Object value, RequestContext requestContext) {
+		try {
+			requestContext.write(value.toString());
+		} catch (IOException e) {
+			System.err.println("Echo node writing exception.");
+		}
+	}
+
+	/**
+	 * Concatenates two values left on stack.
+	 * @param first lower value
+	 * @param second upper value
+	 * @return concatenated values
+	 */
+	static String concat(Object first, Object second) {
+		return first.toString().concat(second.toString());
+	}
+
+	/**
+	 * Operator <code>+</code>.
+	 * @param n first operand
+	 * @param m second operand
+	 * @return result
+	 */
+	static Object add(Object n, Object m) {
+		ValueWrapper result = new ValueWrapper(n);
+		result.increment(m);
+		return result.getValue();
+	}
+
+	/**
+	 * Operator <code>-</code>.
+	 * @param n first operand
+	 * @param m second operand
+	 * @return result
+	 */
+	static Object subtract(Object n, Object m) {
+		ValueWrapper result = new ValueWrapper(n);
+		result.decrement(m);
+		return result.getValue();
+	}
+
+	/**
+	 * Operator <code>*</code>.
+	 * @param n first operand
+	 * @param m second operand
+	 * @return result
+	 */
+	static Object multiply(Object n, Object m) {
+		ValueWrapper result = new ValueWrapper(n);
+		result.multiply(m);
+		return result.getValue();
+	}
+
+	/**
+	 * Operator <code>/</code>.
+	 * @param n first operand
+	 * @param m second operand
+	 * @return result
+	 */
+	static Object divide(Object n, Object m) {
+		ValueWrapper result = new ValueWrapper(n);
+		result.divide(m);
+		return result.getValue();
+	}
+
+	/**
+	 * Function <code>sin</code>.
+	 * @param x number
+	 * @return sine of number
+	 */
+	static Object sin(Object x) {
+		return Math.sin(((Number) x).doubleValue());
+	}
+
+	/**
+	 * Function <code>decfmt</code>.
+	 * @param x number
+	 * @param format decimal format
+	 * @return formatted number
+	 */
+	static Object decfmt(Object x, Object format) {
+		return new DecimalFormat(format.toString()).format(x);
+	}
+
+	/**
+	 * Function <code>setMimeType</code>.
+	 * @param x mime type
+	 * @param requestContext request context
+	 */
+	static void setMimeType(Object x, RequestContext requestContext) {
+		requestContext.setMimeType(x.toString());
+	}
+
+	/**
+	 * Function <code>paramGet</code>.
+	 * @param name parameter name
+	 * @param defValue default value
+	 * @param requestContext request context
+	 * @return parameter value, or default value if there is no such parameter
+	 */
+	static Object paramGet(Object name, Object defValue, RequestContext requestContext) {
+		String value = requestContext.getParameter(name.toString());
+		return value == null ? defValue : value;
+	}
+
+	/**
+	 * Function <code>pparamGet</code>.
+	 * @param name parameter name
+	 * @param defValue default value
+	 * @param requestContext request context
+	 * @return parameter value, or default value if there is no such parameter
+	 */
+	static Object pparamGet(Object name, Object defValue, RequestContext requestContext) {
+		String value = requestContext.getPersistentParameter(name.toString());
+		return value == null ? defValue : value;
+	}
+
+	/**
+	 * Function <code>pparamSet</code>.
+	 * @param value parameter value
+	 * @param name parameter name
+	 * @param requestContext request context
+	 */
+	static void pparamSet(Object value, Object name, RequestContext requestContext) {
+		requestContext.setPersistentParameter(name.toString(), value.toString());
+	}
+
+	/**
+	 * Function <code>pparamDel</code>.
+	 * @param name parameter name
+	 * @param requestContext request context
+	 */
+	static void pparamDel(Object name, RequestContext requestContext) {
+		requestContext.removePersistentParameter(name.toString());
+	}
+
+	/**
+	 * Function <code>tparamGet</code>.
+	 * @param name parameter name
+	 * @param defValue default value
+	 * @param requestContext request context
+	 * @return parameter value, or default value if there is no such parameter
+	 */
+	static Object tparamGet(Object name, Object defValue, RequestContext requestContext) {
+		String value = requestContext.getTemporaryParameter(name.toString());
+		return value == null ? defValue : value;
+	}
+
+	/**
+	 * Function <code>tparamSet</code>.
+	 * @param value parameter value
+	 * @param name parameter name
+	 * @param requestContext request context
+	 */
+	static void tparamSet(Object value, Object name, RequestContext requestContext) {
+		requestContext.setTemporaryParameter(name.toString(), value.toString());
+	}
+
+	/**
+	 * Function <code>tparamDel</code>.
+	 * @param name parameter name
+	 * @param requestContext request context
+	 */
+	static void tparamDel(Object name, RequestContext requestContext) {
+		requestContext.removeTemporaryParameter(name.toString());
+	}
+}
@@ -0,0 +1,889 @@
+package custom.scripting.exec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import custom.scripting.nodes.DocumentNode;
+import custom.scripting.nodes.EchoNode;
+import custom.scripting.nodes.ForLoopNode;
+import custom.scripting.nodes.Node;
+import custom.scripting.nodes.TextNode;
+import custom.scripting.tokens.Token;
+import custom.scripting.tokens.TokenConstantDouble;
+import custom.scripting.tokens.TokenConstantInteger;
+import custom.scripting.tokens.TokenFunction;
+import custom.scripting.tokens.TokenOperator;
+import custom.scripting.tokens.TokenString;
+import custom.scripting.tokens.TokenVariable;
+
+/**
+ * Compiler of smart scripts to JVM bytecode. Document is compiled to method of
+ * hidden class, which is loaded with <code>Lookup.defineHiddenClass</code> and
+ * unloaded when compiled script is no longer used. Text nodes become writes of
+ * bytes coded in advance, for loops become loops of generated method and loop
+ * variables become its local variables. Every operator and function becomes
+ * direct call of {@link ScriptRuntime}, and echo values are kept on operand
+ * stack, since depth of stack is known while compiling. Loops whose bounds and
+ * step are integers count in <code>int</code> variable, other loops keep
+ * {@link ValueWrapper} like engine does.
+ * <p>
+ * Compiled script gives the same output as {@link SmartScriptEngine}. Document
+ * which would fail while executed, i.e. which uses unknown function or
+ * operator, pops empty stack, uses variable outside of its loop or has loop
+ * bounds which are not numbers, is not compiled. Neither is document too large
+ * for single method. Such documents are executed by engine.
+ * @author Dario Vidas
+ *
+ */
+public class SmartScriptCompiler {
+
+	private static final int VERSION = 59;
+	private static final String CLASS = "custom/scripting/exec/CompiledDocument";
+	private static final String RUNTIME = "custom/scripting/exec/ScriptRuntime";
+	private static final String WRAPPER = "custom/scripting/exec/ValueWrapper";
+	private static final String CONTEXT = "Lwebserver/RequestContext;";
+	private static final String OBJECT = "Ljava/lang/Object;";
+	private static final String CONSTANTS = "[Ljava/lang/Object;";
+
+	/** Local variables of method, loop variables follow them. */
+	private static final int THIS = 0;
+	private static final int REQUEST_CONTEXT = 1;
+	private static final int CONSTANTS_ARRAY = 2;
+	private static final int FIRST_LOOP = 3;
+
+	/** Whether invalid generated class was reported, it is reported once. */
+	private static volatile boolean invalidReported;
+
+	private ConstantPool pool = new ConstantPool();
+	private Code code = new Code();
+	private List<Object> constants = new ArrayList<>();
+	private List<Loop> loops = new ArrayList<>();
+	private int maxLocals = FIRST_LOOP;
+	private int maxStack = 6;
+
+	/**
+	 * Constructor. Compiler is used for single document.
+	 */
+	private SmartScriptCompiler() {
+		super();
+	}
+
+	/**
+	 * Compiles given document. If document cannot be compiled, it is
+	 * interpreted. If generated class is rejected by JVM, which is bug of
+	 * compiler, the first such error is printed and document is interpreted.
+	 * @param documentNode document
+	 * @return compiled script
+	 */
+	public static CompiledScript compile(DocumentNode documentNode) {
+		if (documentNode == null) {
+			throw new IllegalArgumentException("Document node cannot be null.");
+		}
+		try {
+			SmartScriptCompiler compiler = new SmartScriptCompiler();
+			byte[] bytes = compiler.compileClass(documentNode);
+			Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+			return (CompiledScript) lookup.lookupClass().getConstructor(Object[].class)
+					.newInstance((Object) compiler.constants.toArray());
+		} catch (UnsupportedOperationException e) {
+			return interpret(documentNode);
+		} catch (IOException | LinkageError | ReflectiveOperationException | IllegalArgumentException e) {
+			if (!invalidReported) {
+				invalidReported = true;
+				e.printStackTrace();		//Log server exception, generated class is invalid
+			}
+			return interpret(documentNode);
+		}
+	}
+
+	/**
+	 * Returns script which interprets given document. Document is translated
+	 * to {@link SmartScriptProgram}, if it cannot be translated it is executed
+	 * by {@link SmartScriptEngine}.
+	 * @param documentNode document
+	 * @return script
+	 */
+	public static CompiledScript interpret(DocumentNode documentNode) {
+		if (documentNode == null) {
+			throw new IllegalArgumentException("Document node cannot be null.");
+		}
+		try {
+			return SmartScriptProgram.translate(documentNode);
+		} catch (UnsupportedOperationException e) {
+			return requestContext -> new SmartScriptEngine(documentNode, requestContext).execute();
+		}
+	}
+
+	/**
+	 * Compiles document to class file.
+	 * @param documentNode document
+	 * @return class file
+	 * @throws IOException never, class file is written to memory
+	 * @throws UnsupportedOperationException if document cannot be compiled
+	 */
+	private byte[] compileClass(DocumentNode documentNode) throws IOException {
+		int thisClass = pool.classRef(CLASS);
+		int superClass = pool.classRef("java/lang/Object");
+		int scriptInterface = pool.classRef("custom/scripting/exec/CompiledScript");
+		int constantsField = pool.fieldRef(CLASS, "constants", CONSTANTS);
+
+		//constructor stores constants
+		Code constructor = new Code();
+		constructor.op(0x2a);		//aload_0
+		constructor.op(0xb7, pool.methodRef("java/lang/Object", "<init>", "()V"));		//invokespecial
+		constructor.op(0x2a);		//aload_0
+		constructor.op(0x2b);		//aload_1
+		constructor.op(0xb5, constantsField);		//putfield
+		constructor.op(0xb1);		//return
+
+		code.op(0x2a);		//aload_0
+		code.op(0xb4, constantsField);		//getfield
+		code.op(0x4d);		//astore_2
+		children(documentNode);
+		code.op(0xb1);		//return
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		byte[] init = method(0x0001, "<init>", "(" + CONSTANTS + ")V", constructor, 2, 2);
+		byte[] execute = method(0x0001, "execute", "(" + CONTEXT + ")V", code, maxStack, maxLocals);
+		pool.count();
+
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(VERSION);
+		pool.writeTo(out);
+		out.writeShort(0x0030);		//final, super
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(1);
+		out.writeShort(scriptInterface);
+		out.writeShort(1);
+		out.writeShort(0x0012);		//private final
+		out.writeShort(pool.utf8("constants"));
+		out.writeShort(pool.utf8(CONSTANTS));
+		out.writeShort(0);
+		out.writeShort(2);
+		out.write(init);
+		out.write(execute);
+		out.writeShort(0);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes method with given code.
+	 * @param access access flags
+	 * @param name method name
+	 * @param descriptor method descriptor
+	 * @param body method code
+	 * @param stack maximum depth of operand stack
+	 * @param locals number of local variables
+	 * @return method
+	 * @throws IOException never, method is written to memory
+	 */
+	private byte[] method(int access, String name, String descriptor, Code body, int stack, int locals)
+			throws IOException {
+		if (body.length > 65535) {
+			throw new UnsupportedOperationException("Document is too large.");
+		}
+		byte[] frames = body.frames.isEmpty() ? null : stackMapTable(body);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(access);
+		out.writeShort(pool.utf8(name));
+		out.writeShort(pool.utf8(descriptor));
+		out.writeShort(1);
+		out.writeShort(pool.utf8("Code"));
+		out.writeInt(12 + body.length + (frames == null ? 0 : 6 + frames.length));
+		out.writeShort(stack);
+		out.writeShort(locals);
+		out.writeInt(body.length);
+		out.write(body.bytes, 0, body.length);
+		out.writeShort(0);		//no exception handlers
+		if (frames == null) {
+			out.writeShort(0);
+		} else {
+			out.writeShort(1);
+			out.writeShort(pool.utf8("StackMapTable"));
+			out.writeInt(frames.length);
+			out.write(frames);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes stack map frames of loop labels. Operand stack is always empty at
+	 * labels, and every frame lists method arguments, constants and variables
+	 * of loops which are running.
+	 * @param body method code
+	 * @return stack map table
+	 * @throws IOException never, table is written to memory
+	 */
+	private byte[] stackMapTable(Code body) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(body.frames.size());
+		int previous = -1;
+		for (Map.Entry<Integer, boolean[]> e : body.frames.entrySet()) {
+			boolean[] integers = e.getValue();
+			out.writeByte(255);		//full frame
+			out.writeShort(e.getKey() - previous - 1);
+			out.writeShort(FIRST_LOOP + integers.length);
+			out.writeByte(7);
+			out.writeShort(pool.classRef(CLASS));
+			out.writeByte(7);
+			out.writeShort(pool.classRef("webserver/RequestContext"));
+			out.writeByte(7);
+			out.writeShort(pool.classRef(CONSTANTS));
+			for (boolean integer : integers) {
+				if (integer) {
+					out.writeByte(1);
+				} else {
+					out.writeByte(7);
+					out.writeShort(pool.classRef(WRAPPER));
+				}
+			}
+			out.writeShort(0);		//empty stack
+			previous = e.getKey();
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Compiles children of given node.
+	 * @param node node
+	 */
+	private void children(Node node) {
+		final int size = node.numberOfChildren();
+		for (int i = 0; i < size; i++) {
+			Node child = node.getChild(i);
+			if (child instanceof TextNode) {
+				text((TextNode) child);
+			} else if (child instanceof EchoNode) {
+				echo((EchoNode) child);
+			} else if (child instanceof ForLoopNode) {
+				loop((ForLoopNode) child);
+			} else {
+				throw new UnsupportedOperationException("Unknown node.");
+			}
+		}
+	}
+
+	/**
+	 * Compiles text node to write of bytes coded in advance. Bytes and text are
+	 * kept in array of constants.
+	 * @param node text node
+	 */
+	private void text(TextNode node) {
+		int index = constants.size();
+		constants.add(node.getText().getBytes(StandardCharsets.UTF_8));
+		constants.add(node.getText());
+
+		code.op(0x2b);		//aload_1
+		code.op(0x2c);		//aload_2
+		code.pushInt(index, pool);
+		code.op(0x32);		//aaload
+		code.op(0xc0, pool.classRef("[B"));		//checkcast
+		code.op(0x2c);		//aload_2
+		code.pushInt(index + 1, pool);
+		code.op(0x32);		//aaload
+		code.op(0xc0, pool.classRef("java/lang/String"));		//checkcast
+		code.op(0xb8, pool.methodRef(RUNTIME, "text", "(" + CONTEXT + "[BLjava/lang/String;)V"));
+	}
+
+	/**
+	 * Compiles echo node. Values are kept on operand stack, and what is left
+	 * on it is concatenated from bottom to top and written.
+	 * @param node echo node
+	 */
+	private void echo(EchoNode node) {
+		int depth = 0;
+		for (Token t : node.getTokens()) {
+			if (t instanceof TokenConstantInteger || t instanceof TokenConstantDouble) {
+				pushNumber(number(t));
+				depth++;
+
+			} else if (t instanceof TokenString) {
+				code.op(0x13, pool.string(((TokenString) t).getValue()));		//ldc_w
+				depth++;
+
+			} else if (t instanceof TokenVariable) {
+				loadVariable(((TokenVariable) t).getName());
+				depth++;
+
+			} else if (t instanceof TokenOperator) {
+				depth = require(depth, 2) - 1;
+				code.op(0xb8, pool.methodRef(RUNTIME, operation(((TokenOperator) t).getSymbol()),
+						"(" + OBJECT + OBJECT + ")" + OBJECT));
+
+			} else if (t instanceof TokenFunction) {
+				depth = function(((TokenFunction) t).getName(), depth);
+
+			} else {
+				throw new UnsupportedOperationException("Unknown token.");
+			}
+			maxStack = Math.max(maxStack, depth + 3);
+		}
+
+		if (depth == 0) {
+			code.op(0x13, pool.string(""));		//ldc_w
+		}
+		for (int i = 1; i < depth; i++) {
+			code.op(0xb8, pool.methodRef(RUNTIME, "concat", "(" + OBJECT + OBJECT + ")Ljava/lang/String;"));
+		}
+		code.op(0x2b);		//aload_1
+		code.op(0xb8, pool.methodRef(RUNTIME, "echo", "(" + OBJECT + CONTEXT + ")V"));
+	}
+
+	/**
+	 * Compiles function call.
+	 * @param name function name
+	 * @param depth depth of stack before call
+	 * @return depth of stack after call
+	 */
+	private int function(String name, int depth) {
+		switch (name) {
+			case "sin":
+				require(depth, 1);
+				code.op(0xb8, pool.methodRef(RUNTIME, name, "(" + OBJECT + ")" + OBJECT));
+				return depth;
+			case "decfmt":
+				require(depth, 2);
+				code.op(0xb8, pool.methodRef(RUNTIME, name, "(" + OBJECT + OBJECT + ")" + OBJECT));
+				return depth - 1;
+			case "dup":
+				require(depth, 1);
+				code.op(0x59);		//dup
+				return depth + 1;
+			case "swap":
+				require(depth, 2);
+				code.op(0x5f);		//swap
+				return depth;
+			case "setMimeType":
+			case "pparamDel":
+			case "tparamDel":
+				require(depth, 1);
+				code.op(0x2b);		//aload_1
+				code.op(0xb8, pool.methodRef(RUNTIME, name, "(" + OBJECT + CONTEXT + ")V"));
+				return depth - 1;
+			case "paramGet":
+			case "pparamGet":
+			case "tparamGet":
+				require(depth, 2);
+				code.op(0x2b);		//aload_1
+				code.op(0xb8, pool.methodRef(RUNTIME, name, "(" + OBJECT + OBJECT + CONTEXT + ")" + OBJECT));
+				return depth - 1;
+			case "pparamSet":
+			case "tparamSet":
+				require(depth, 2);
+				code.op(0x2b);		//aload_1
+				code.op(0xb8, pool.methodRef(RUNTIME, name, "(" + OBJECT + OBJECT + CONTEXT + ")V"));
+				return depth - 2;
+			default:
+				throw new UnsupportedOperationException("Unknown function.");
+		}
+	}
+
+	/**
+	 * Compiles for loop.
+	 * @param node for loop node
+	 */
+	private void loop(ForLoopNode node) {
+		Number start = number(node.getStartExpression());
+		Number end = number(node.getEndExpression());
+		Number step = node.getStepExpression() == null ? Integer.valueOf(1) : number(node.getStepExpression());
+		boolean integer = start instanceof Integer && end instanceof Integer && step instanceof Integer;
+		Loop loop = new Loop(node.getVariable().getName(), FIRST_LOOP + loops.size(), integer);
+		if (loop.slot > 255) {
+			throw new UnsupportedOperationException("Loops are nested too deep.");
+		}
+		maxLocals = Math.max(maxLocals, loop.slot + 1);
+		Label head = new Label();
+		Label exit = new Label();
+
+		if (integer) {
+			code.pushInt(start.intValue(), pool);
+			code.op(0x36, loop.slot);		//istore
+		} else {
+			code.op(0xbb, pool.classRef(WRAPPER));		//new
+			code.op(0x59);		//dup
+			pushNumber(start);
+			code.op(0xb7, pool.methodRef(WRAPPER, "<init>", "(" + OBJECT + ")V"));		//invokespecial
+			code.op(0x3a, loop.slot);		//astore
+		}
+		loops.add(loop);
+		code.bind(head, loops);
+
+		if (integer) {
+			code.op(0x15, loop.slot);		//iload
+			code.pushInt(end.intValue(), pool);
+			code.jump(0xa3, exit);		//if_icmpgt
+		} else {
+			code.op(0x19, loop.slot);		//aload
+			pushNumber(end);
+			code.op(0xb6, pool.methodRef(WRAPPER, "numCompare", "(" + OBJECT + ")I"));		//invokevirtual
+			code.jump(0x9d, exit);		//ifgt
+		}
+
+		children(node);
+
+		if (integer) {
+			code.op(0x15, loop.slot);		//iload
+			code.pushInt(step.intValue(), pool);
+			code.op(0x60);		//iadd
+			code.op(0x36, loop.slot);		//istore
+		} else {
+			code.op(0x19, loop.slot);		//aload
+			pushNumber(step);
+			code.op(0xb6, pool.methodRef(WRAPPER, "increment", "(" + OBJECT + ")V"));		//invokevirtual
+		}
+		code.jump(0xa7, head);		//goto
+		loops.remove(loops.size() - 1);
+		code.bind(exit, loops);
+	}
+
+	/**
+	 * Pushes value of variable of the innermost running loop with given name.
+	 * @param name variable name
+	 */
+	private void loadVariable(String name) {
+		for (int i = loops.size() - 1; i >= 0; i--) {
+			Loop loop = loops.get(i);
+			if (loop.name.equals(name)) {
+				if (loop.integer) {
+					code.op(0x15, loop.slot);		//iload
+					code.op(0xb8, pool.methodRef("java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;"));
+				} else {
+					code.op(0x19, loop.slot);		//aload
+					code.op(0xb6, pool.methodRef(WRAPPER, "getValue", "()" + OBJECT));		//invokevirtual
+				}
+				return;
+			}
+		}
+		throw new UnsupportedOperationException("Variable is not defined.");
+	}
+
+	/**
+	 * Pushes boxed number.
+	 * @param number integer or double
+	 */
+	private void pushNumber(Number number) {
+		if (number instanceof Integer) {
+			code.pushInt(number.intValue(), pool);
+			code.op(0xb8, pool.methodRef("java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;"));
+		} else {
+			code.op(0x14, pool.doubleConstant(number.doubleValue()));		//ldc2_w
+			code.op(0xb8, pool.methodRef("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;"));
+		}
+	}
+
+	/**
+	 * Returns value of numeric constant.
+	 * @param token token
+	 * @return value
+	 */
+	private static Number number(Token token) {
+		if (token instanceof TokenConstantInteger) {
+			return ((TokenConstantInteger) token).getValue();
+		}
+		if (token instanceof TokenConstantDouble) {
+			return ((TokenConstantDouble) token).getValue();
+		}
+		throw new UnsupportedOperationException("Loop bound is not a number.");
+	}
+
+	/**
+	 * Returns name of runtime method of given operator.
+	 * @param symbol operator
+	 * @return method name
+	 */
+	private static String operation(String symbol) {
+		switch (symbol) {
+			case "+":
+				return "add";
+			case "-":
+				return "subtract";
+			case "*":
+				return "multiply";
+			case "/":
+				return "divide";
+			default:
+				throw new UnsupportedOperationException("Unknown operator.");
+		}
+	}
+
+	/**
+	 * Checks whether stack has enough values.
+	 * @param depth depth of stack
+	 * @param needed number of values needed
+	 * @return depth of stack
+	 */
+	private static int require(int depth, int needed) {
+		if (depth < needed) {
+			throw new UnsupportedOperationException("Stack is empty.");
+		}
+		return depth;
+	}
+
+	/**
+	 * Loop which is being compiled.
+	 * @author Dario Vidas
+	 *
+	 */
+	private static class Loop {
+
+		private String name;
+		private int slot;
+		private boolean integer;
+
+		/**
+		 * Constructor with 3 arguments.
+		 * @param name variable name
+		 * @param slot local variable which holds loop variable
+		 * @param integer whether loop variable is <code>int</code>
+		 */
+		Loop(String name, int slot, boolean integer) {
+			this.name = name;
+			this.slot = slot;
+			this.integer = integer;
+		}
+	}
+
+	/**
+	 * Jump target.
+	 * @author Dario Vidas
+	 *
+	 */
+	private static class Label {
+		private int offset = -1;
+		private List<Integer> jumps = new ArrayList<>();
+	}
+
+	/**
+	 * Bytecode of method.
+	 * @author Dario Vidas
+	 *
+	 */
+	private static class Code {
+
+		private byte[] bytes = new byte[256];
+		private int length;
+		/** Types of loop variables at labels, <code>true</code> for int. */
+		private Map<Integer, boolean[]> frames = new TreeMap<>();
+
+		/**
+		 * Writes instruction without operands.
+		 * @param opcode opcode
+		 */
+		void op(int opcode) {
+			ensure(1);
+			bytes[length++] = (byte) opcode;
+		}
+
+		/**
+		 * Writes instruction with operand. Operand of local variable
+		 * instructions is one byte, other operands are two bytes.
+		 * @param opcode opcode
+		 * @param operand operand
+		 */
+		void op(int opcode, int operand) {
+			if (opcode == 0x15 || opcode == 0x19 || opcode == 0x36 || opcode == 0x3a) {
+				ensure(2);
+				bytes[length++] = (byte) opcode;
+				bytes[length++] = (byte) operand;
+			} else {
+				ensure(3);
+				bytes[length++] = (byte) opcode;
+				putShort(length, operand);
+				length += 2;
+			}
+		}
+
+		/**
+		 * Pushes integer constant.
+		 * @param value value
+		 * @param pool constant pool
+		 */
+		void pushInt(int value, ConstantPool pool) {
+			if (value >= -1 && value <= 5) {
+				op(0x03 + value);		//iconst
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				ensure(2);
+				bytes[length++] = 0x10;		//bipush
+				bytes[length++] = (byte) value;
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				op(0x11, value & 0xFFFF);		//sipush
+			} else {
+				op(0x13, pool.integer(value));		//ldc_w
+			}
+		}
+
+		/**
+		 * Writes jump to given label.
+		 * @param opcode jump opcode
+		 * @param label target
+		 */
+		void jump(int opcode, Label label) {
+			int position = length;
+			op(opcode, 0);
+			if (label.offset >= 0) {
+				patch(position, label.offset);
+			} else {
+				label.jumps.add(position);
+			}
+		}
+
+		/**
+		 * Binds label to current position and records frame at it.
+		 * @param label label
+		 * @param loops running loops
+		 */
+		void bind(Label label, List<Loop> loops) {
+			label.offset = length;
+			for (int position : label.jumps) {
+				patch(position, length);
+			}
+			boolean[] integers = new boolean[loops.size()];
+			for (int i = 0; i < integers.length; i++) {
+				integers[i] = loops.get(i).integer;
+			}
+			boolean[] previous = frames.put(length, integers);
+			if (previous != null && !Arrays.equals(previous, integers)) {
+				throw new UnsupportedOperationException("Labels have different frames.");
+			}
+		}
+
+		/**
+		 * Sets offset of jump instruction.
+		 * @param position position of jump instruction
+		 * @param target target position
+		 */
+		private void patch(int position, int target) {
+			int offset = target - position;
+			if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+				throw new UnsupportedOperationException("Loop is too long.");
+			}
+			putShort(position + 1, offset);
+		}
+
+		/**
+		 * Writes two bytes at given position.
+		 * @param position position
+		 * @param value value
+		 */
+		private void putShort(int position, int value) {
+			bytes[position] = (byte) (value >>> 8);
+			bytes[position + 1] = (byte) value;
+		}
+
+		/**
+		 * Ensures space for given number of bytes.
+		 * @param needed number of bytes
+		 */
+		private void ensure(int needed) {
+			if (length + needed > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + needed));
+			}
+		}
+	}
+
+	/**
+	 * Constant pool of class file. Entries are written as they are added, and
+	 * added only once.
+	 * @author Dario Vidas
+	 *
+	 */
+	private static class ConstantPool {
+
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private DataOutputStream out = new DataOutputStream(bytes);
+		private Map<String, Integer> entries = new HashMap<>();
+		private int next = 1;
+
+		/**
+		 * Adds UTF-8 entry.
+		 * @param value string
+		 * @return index of entry
+		 */
+		int utf8(String value) {
+			Integer index = entries.get("U" + value);
+			if (index != null) {
+				return index;
+			}
+			try {
+				out.writeByte(1);
+				out.writeUTF(value);
+			} catch (IOException e) {
+				throw new UnsupportedOperationException("Text is too long.", e);
+			}
+			return add("U" + value, 1);
+		}
+
+		/**
+		 * Adds class entry.
+		 * @param name internal class name
+		 * @return index of entry
+		 */
+		int classRef(String name) {
+			return reference("C" + name, 7, utf8(name), -1);
+		}
+
+		/**
+		 * Adds string entry.
+		 * @param value string
+		 * @return index of entry
+		 */
+		int string(String value) {
+			return reference("S" + value, 8, utf8(value), -1);
+		}
+
+		/**
+		 * Adds field reference entry.
+		 * @param owner internal name of class
+		 * @param name field name
+		 * @param descriptor field descriptor
+		 * @return index of entry
+		 */
+		int fieldRef(String owner, String name, String descriptor) {
+			return reference("F" + owner + "." + name + ":" + descriptor, 9, classRef(owner),
+					nameAndType(name, descriptor));
+		}
+
+		/**
+		 * Adds method reference entry.
+		 * @param owner internal name of class
+		 * @param name method name
+		 * @param descriptor method descriptor
+		 * @return index of entry
+		 */
+		int methodRef(String owner, String name, String descriptor) {
+			return reference("M" + owner + "." + name + descriptor, 10, classRef(owner),
+					nameAndType(name, descriptor));
+		}
+
+		/**
+		 * Adds integer entry.
+		 * @param value value
+		 * @return index of entry
+		 */
+		int integer(int value) {
+			Integer index = entries.get("I" + value);
+			if (index != null) {
+				return index;
+			}
+			write(3, value >>> 16, value & 0xFFFF);
+			return add("I" + value, 1);
+		}
+
+		/**
+		 * Adds double entry, which takes two indices.
+		 * @param value value
+		 * @return index of entry
+		 */
+		int doubleConstant(double value) {
+			long bits = Double.doubleToRawLongBits(value);
+			Integer index = entries.get("D" + bits);
+			if (index != null) {
+				return index;
+			}
+			try {
+				out.writeByte(6);
+				out.writeLong(bits);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return add("D" + bits, 2);
+		}
+
+		/**
+		 * Adds name and type entry.
+		 * @param name name
+		 * @param descriptor descriptor
+		 * @return index of entry
+		 */
+		private int nameAndType(String name, String descriptor) {
+			return reference("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+		}
+
+		/**
+		 * Adds entry which refers to other entries.
+		 * @param key key of entry
+		 * @param tag tag
+		 * @param first first index
+		 * @param second second index, -1 if there is none
+		 * @return index of entry
+		 */
+		private int reference(String key, int tag, int first, int second) {
+			Integer index = entries.get(key);
+			if (index != null) {
+				return index;
+			}
+			write(tag, first, second);
+			return add(key, 1);
+		}
+
+		/**
+		 * Writes entry with tag and one or two shorts.
+		 * @param tag tag
+		 * @param first first short
+		 * @param second second short, -1 if there is none
+		 */
+		private void write(int tag, int first, int second) {
+			try {
+				out.writeByte(tag);
+				out.writeShort(first);
+				if (second != -1) {
+					out.writeShort(second);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * Remembers entry.
+		 * @param key key of entry
+		 * @param size number of indices entry takes
+		 * @return index of entry
+		 */
+		private int add(String key, int size) {
+			int index = next;
+			next += size;
+			entries.put(key, index);
+			return index;
+		}
+
+		/**
+		 * Checks whether pool fits in class file.
+		 */
+		void count() {
+			if (next > 65535) {
+				throw new UnsupportedOperationException("Document has too many constants.");
+			}
+		}
+
+		/**
+		 * Writes pool.
+		 * @param output class file
+		 * @throws IOException exception while writing
+		 */
+		void writeTo(DataOutputStream output) throws IOException {
+			out.flush();
+			output.writeShort(next);
+			bytes.writeTo(output);
+		}
+	}
+}
@@ -39,11 +39,8 @@ public class SmartScriptEngineDemos {
 		List<RCCookie> cookies = new ArrayList<RequestContext.RCCookie>();
 
 		// create engine and execute it
-		new SmartScriptEngine(new SmartScriptParser(documentBody).getDocumentNode(), new RequestContext(
-				System.out,
-				parameters,
-				persistentParameters,
-				cookies)).execute();
+		RequestContext rc = new RequestContext(System.out, parameters, persistentParameters, cookies);
+		execute(documentBody, rc);
 	}
 
 	/**
@@ -59,11 +56,8 @@ public class SmartScriptEngineDemos {
 		parameters.put("b", "2");
 
 		// create engine and execute it
-		new SmartScriptEngine(new SmartScriptParser(documentBody).getDocumentNode(), new RequestContext(
-				System.out,
-				parameters,
-				persistentParameters,
-				cookies)).execute();
+		RequestContext rc = new RequestContext(System.out, parameters, persistentParameters, cookies);
+		execute(documentBody, rc);
 	}
 
 	/**
@@ -78,7 +72,7 @@ public class SmartScriptEngineDemos {
 		persistentParameters.put("brojPoziva", "3");
 		RequestContext rc = new RequestContext(System.out, parameters, persistentParameters, cookies);
 
-		new SmartScriptEngine(new SmartScriptParser(documentBody).getDocumentNode(), rc).execute();
+		execute(documentBody, rc);
 		System.out.println("Vrijednost u mapi: " + rc.getPersistentParameter("brojPoziva"));
 	}
 
@@ -92,11 +86,23 @@ public class SmartScriptEngineDemos {
 		List<RCCookie> cookies = new ArrayList<RequestContext.RCCookie>();
 
 		// create engine and execute it
-		new SmartScriptEngine(new SmartScriptParser(documentBody).getDocumentNode(), new RequestContext(
-				System.out,
-				parameters,
-				persistentParameters,
-				cookies)).execute();
+		RequestContext rc = new RequestContext(System.out, parameters, persistentParameters, cookies);
+		execute(documentBody, rc);
+	}
+
+	/**
+	 * Method executes given document and finishes response, so that buffered
+	 * output is written.
+	 * @param documentBody document to execute
+	 * @param rc request context
+	 */
+	private static void execute(String documentBody, RequestContext rc) {
+		new SmartScriptEngine(new SmartScriptParser(documentBody).getDocumentNode(), rc).execute();
+		try {
+			rc.finish();
+		} catch (IOException e) {
+			System.err.println("Error");
+		}
 	}
 
 	/**
@@ -0,0 +1,399 @@
+package custom.scripting.exec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import custom.scripting.nodes.DocumentNode;
+import custom.scripting.nodes.EchoNode;
+import custom.scripting.nodes.ForLoopNode;
+import custom.scripting.nodes.Node;
+import custom.scripting.nodes.TextNode;
+import custom.scripting.tokens.Token;
+import custom.scripting.tokens.TokenConstantDouble;
+import custom.scripting.tokens.TokenConstantInteger;
+import custom.scripting.tokens.TokenFunction;
+import custom.scripting.tokens.TokenOperator;
+import custom.scripting.tokens.TokenString;
+import custom.scripting.tokens.TokenVariable;
+
+/**
+ * Optimizer of parsed smart scripts. Optimized document writes the same bytes
+ * as the original one, but does less work on every request:
+ * <ul>
+ * <li>constant expressions in echo nodes are evaluated once, echo node whose
+ * tokens are all constant becomes text node,</li>
+ * <li>adjacent text nodes are merged,</li>
+ * <li>loops whose body is only text are replaced by text they write, and loops
+ * which write nothing are removed.</li>
+ * </ul>
+ * Expressions are evaluated with {@link ValueWrapper} like in
+ * {@link SmartScriptEngine}. Expressions which would throw exception, and
+ * everything after functions which change request context, are left as they
+ * are.
+ * @author Dario Vidas
+ *
+ */
+public final class SmartScriptOptimizer {
+
+	/** Maximum length of text written by loop which is replaced. */
+	private static final int MAX_TEXT = 16384;
+
+	/**
+	 * Disabled constructor.
+	 */
+	private SmartScriptOptimizer() {
+	}
+
+	/**
+	 * Returns optimized copy of given document. Given document is not changed.
+	 * @param documentNode document
+	 * @return optimized document
+	 */
+	public static DocumentNode optimize(DocumentNode documentNode) {
+		if (documentNode == null) {
+			throw new IllegalArgumentException("Document node cannot be null.");
+		}
+		DocumentNode optimized = new DocumentNode(documentNode.getDocument());
+		for (Node child : children(documentNode)) {
+			optimized.addChildNode(child);
+		}
+		return optimized;
+	}
+
+	/**
+	 * Returns optimized children of given node.
+	 * @param node node
+	 * @return optimized children
+	 */
+	private static List<Node> children(Node node) {
+		List<Node> children = new ArrayList<>();
+		final int size = node.numberOfChildren();
+		for (int i = 0; i < size; i++) {
+			Node child = node.getChild(i);
+			if (child instanceof EchoNode) {
+				add(children, echo((EchoNode) child));
+			} else if (child instanceof ForLoopNode) {
+				loop((ForLoopNode) child, children);
+			} else {
+				add(children, child);
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * Adds node to list, merging it with previous text node.
+	 * @param nodes nodes
+	 * @param node node to add
+	 */
+	private static void add(List<Node> nodes, Node node) {
+		int last = nodes.size() - 1;
+		if (node instanceof TextNode && last >= 0 && nodes.get(last) instanceof TextNode) {
+			String first = ((TextNode) nodes.get(last)).getText();
+			String second = ((TextNode) node).getText();
+			if (canMerge(first, second)) {
+				nodes.set(last, new TextNode(first + second));
+				return;
+			}
+		}
+		nodes.add(node);
+	}
+
+	/**
+	 * Checks whether two texts are coded the same together and separately,
+	 * which is not true only if they split surrogate pair.
+	 * @param first first text
+	 * @param second second text
+	 * @return <code>true</code> if texts can be merged, <code>false</code>
+	 *         otherwise
+	 */
+	private static boolean canMerge(String first, String second) {
+		return first.isEmpty() || second.isEmpty()
+				|| !Character.isHighSurrogate(first.charAt(first.length() - 1))
+				|| !Character.isLowSurrogate(second.charAt(0));
+	}
+
+	/**
+	 * Optimizes for loop and adds it, or text it writes, to list.
+	 * @param node for loop node
+	 * @param nodes nodes
+	 */
+	private static void loop(ForLoopNode node, List<Node> nodes) {
+		ForLoopNode loop = new ForLoopNode(node.getVariable(), node.getStartExpression(),
+				node.getEndExpression(), node.getStepExpression());
+		List<Node> body = children(node);
+		for (Node child : body) {
+			loop.addChildNode(child);
+		}
+
+		int iterations = iterations(node, body.size() == 1 && body.get(0) instanceof TextNode
+				? MAX_TEXT / Math.max(1, ((TextNode) body.get(0)).getText().length()) : MAX_TEXT);
+		if (iterations == 0 || iterations > 0 && body.isEmpty()) {
+			return;		//writes nothing
+		}
+		if (iterations > 0 && body.size() == 1 && body.get(0) instanceof TextNode) {
+			String text = ((TextNode) body.get(0)).getText();
+			if (canMerge(text, text)) {
+				add(nodes, new TextNode(String.join("", Collections.nCopies(iterations, text))));
+				return;
+			}
+		}
+		nodes.add(loop);
+	}
+
+	/**
+	 * Counts iterations of loop like {@link SmartScriptEngine} runs it.
+	 * @param node for loop node
+	 * @param max maximum number of iterations counted
+	 * @return number of iterations, or -1 if loop bounds are not numbers or
+	 *         there are more than maximum iterations
+	 */
+	private static int iterations(ForLoopNode node, int max) {
+		Object start = number(node.getStartExpression());
+		Object end = number(node.getEndExpression());
+		Object step = node.getStepExpression() == null ? Integer.valueOf(1) : number(node.getStepExpression());
+		if (start == null || end == null || step == null) {
+			return -1;
+		}
+
+		ValueWrapper current = new ValueWrapper(start);
+		int iterations = 0;
+		while (current.numCompare(end) <= 0) {
+			if (++iterations > max) {
+				return -1;
+			}
+			current.increment(step);
+		}
+		return iterations;
+	}
+
+	/**
+	 * Returns value of numeric constant.
+	 * @param token token
+	 * @return value, or <code>null</code> if token is not numeric constant
+	 */
+	private static Object number(Token token) {
+		if (token instanceof TokenConstantInteger) {
+			return ((TokenConstantInteger) token).getValue();
+		}
+		if (token instanceof TokenConstantDouble) {
+			return ((TokenConstantDouble) token).getValue();
+		}
+		return null;
+	}
+
+	/**
+	 * Optimizes echo node. Tokens are evaluated while it is possible, values
+	 * which are not constant keep tokens which compute them.
+	 * @param node echo node
+	 * @return text node if all tokens are constant, echo node otherwise
+	 */
+	private static Node echo(EchoNode node) {
+		Token[] tokens = node.getTokens();
+		List<Operand> stack = new ArrayList<>();
+		int folded = 0;
+		while (folded < tokens.length && fold(tokens[folded], stack)) {
+			folded++;
+		}
+
+		if (folded == tokens.length && stack.stream().allMatch(o -> o.tokens == null)) {
+			StringBuilder text = new StringBuilder();
+			for (Operand o : stack) {
+				text.append(o.value.toString());
+			}
+			return new TextNode(text.toString());
+		}
+
+		List<Token> optimized = new ArrayList<>();
+		for (Operand o : stack) {
+			optimized.addAll(o.tokens());
+		}
+		for (int i = folded; i < tokens.length; i++) {
+			optimized.add(tokens[i]);
+		}
+		return new EchoNode(optimized.toArray(new Token[optimized.size()]));
+	}
+
+	/**
+	 * Evaluates token on stack.
+	 * @param token token
+	 * @param stack stack of operands
+	 * @return <code>true</code> if token was evaluated, <code>false</code> if
+	 *         it must be left with all tokens after it
+	 */
+	private static boolean fold(Token token, List<Operand> stack) {
+		if (token instanceof TokenConstantInteger) {
+			stack.add(new Operand(((TokenConstantInteger) token).getValue()));
+			return true;
+		}
+		if (token instanceof TokenConstantDouble) {
+			stack.add(new Operand(((TokenConstantDouble) token).getValue()));
+			return true;
+		}
+		if (token instanceof TokenString) {
+			stack.add(new Operand(((TokenString) token).getValue()));
+			return true;
+		}
+		if (token instanceof TokenVariable) {
+			stack.add(new Operand(Collections.<Token>singletonList(token)));
+			return true;
+		}
+		if (token instanceof TokenOperator) {
+			String symbol = ((TokenOperator) token).getSymbol();
+			switch (symbol) {
+				case "+":
+				case "-":
+				case "*":
+				case "/":
+					return apply(token, 2, stack);
+				default:
+					return false;
+			}
+		}
+		if (token instanceof TokenFunction) {
+			int size = stack.size();
+			switch (((TokenFunction) token).getName()) {
+				case "sin":
+					return apply(token, 1, stack);
+				case "decfmt":
+				case "paramGet":
+				case "pparamGet":
+				case "tparamGet":
+					return apply(token, 2, stack);
+				case "dup":
+					if (size < 1 || stack.get(size - 1).tokens != null) {
+						return false;
+					}
+					stack.add(stack.get(size - 1));
+					return true;
+				case "swap":
+					if (size < 2 || stack.get(size - 1).tokens != null || stack.get(size - 2).tokens != null) {
+						return false;
+					}
+					stack.add(stack.remove(size - 2));
+					return true;
+				default:
+					return false;		//changes request context
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Applies operator or function without side effects to operands on top of
+	 * stack. If all operands are constant it is evaluated, otherwise tokens
+	 * of operands and given token compute the result.
+	 * @param token operator or function
+	 * @param arity number of operands
+	 * @param stack stack of operands
+	 * @return <code>true</code> if token was applied, <code>false</code>
+	 *         otherwise
+	 */
+	private static boolean apply(Token token, int arity, List<Operand> stack) {
+		int size = stack.size();
+		if (size < arity) {
+			return false;
+		}
+		List<Operand> operands = stack.subList(size - arity, size);
+
+		Object value = null;
+		if (operands.stream().allMatch(o -> o.tokens == null)) {
+			try {
+				value = evaluate(token, operands);
+			} catch (RuntimeException e) {
+				return false;		//fails on every request, left to be executed
+			}
+		}
+		Operand result;
+		if (value != null) {
+			result = new Operand(value);
+		} else {
+			List<Token> tokens = new ArrayList<>();
+			for (Operand o : operands) {
+				tokens.addAll(o.tokens());
+			}
+			tokens.add(token);
+			result = new Operand(tokens);
+		}
+		operands.clear();
+		stack.add(result);
+		return true;
+	}
+
+	/**
+	 * Evaluates operator or function with constant operands.
+	 * @param token operator or function
+	 * @param operands operands
+	 * @return result, or <code>null</code> if token is not evaluated in advance
+	 */
+	private static Object evaluate(Token token, List<Operand> operands) {
+		Object x = operands.get(0).value;
+		Object y = operands.size() > 1 ? operands.get(1).value : null;
+		if (token instanceof TokenOperator) {
+			switch (((TokenOperator) token).getSymbol()) {
+				case "+":
+					return ScriptRuntime.add(x, y);
+				case "-":
+					return ScriptRuntime.subtract(x, y);
+				case "*":
+					return ScriptRuntime.multiply(x, y);
+				default:
+					return ScriptRuntime.divide(x, y);
+			}
+		}
+		switch (((TokenFunction) token).getName()) {
+			case "sin":
+				return ScriptRuntime.sin(x);
+			case "decfmt":
+				return ScriptRuntime.decfmt(x, y);
+			default:
+				return null;		//reads parameters of request
+		}
+	}
+
+	/**
+	 * Value on stack while echo node is optimized. Value is either constant, or
+	 * computed by tokens.
+	 * @author Dario Vidas
+	 *
+	 */
+	private static class Operand {
+
+		private Object value;
+		private List<Token> tokens;
+
+		/**
+		 * Constructor for constant.
+		 * @param value constant
+		 */
+		Operand(Object value) {
+			this.value = value;
+		}
+
+		/**
+		 * Constructor for value computed by tokens.
+		 * @param tokens tokens
+		 */
+		Operand(List<Token> tokens) {
+			this.tokens = tokens;
+		}
+
+		/**
+		 * Returns tokens which push this value.
+		 * @return tokens
+		 */
+		List<Token> tokens() {
+			if (tokens != null) {
+				return tokens;
+			}
+			if (value instanceof Integer) {
+				return Collections.singletonList(new TokenConstantInteger((Integer) value));
+			}
+			if (value instanceof Double) {
+				return Collections.singletonList(new TokenConstantDouble((Double) value));
+			}
+			return Collections.singletonList(new TokenString(value.toString()));
+		}
+	}
+}
@@ -0,0 +1,777 @@
+package custom.scripting.exec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import custom.scripting.nodes.DocumentNode;
+import custom.scripting.nodes.EchoNode;
+import custom.scripting.nodes.ForLoopNode;
+import custom.scripting.nodes.Node;
+import custom.scripting.nodes.TextNode;
+import custom.scripting.tokens.Token;
+import custom.scripting.tokens.TokenConstantDouble;
+import custom.scripting.tokens.TokenConstantInteger;
+import custom.scripting.tokens.TokenFunction;
+import custom.scripting.tokens.TokenOperator;
+import custom.scripting.tokens.TokenString;
+import custom.scripting.tokens.TokenVariable;
+import webserver.RequestContext;
+
+/**
+ * Smart script translated to flat array of register instructions. Every
+ * position of echo stack is register, since depth of stack is known while
+ * translating, and every loop has registers for its variable, end and step.
+ * Variables are resolved to registers of their loops, so nothing is looked up
+ * by name while script runs, and loops are jumps within instruction array.
+ * <p>
+ * Registers are typed, they hold <code>int</code>, <code>double</code> or
+ * object, so numbers are not boxed. Execution allocates registers, string
+ * builder and encoder once, echo nodes reuse them, so in steady state they
+ * allocate nothing except results of functions which create objects. Program
+ * gives the same output as {@link SmartScriptEngine}. Documents which would
+ * fail while executed are not translated, like in {@link SmartScriptCompiler}.
+ * @author Dario Vidas
+ *
+ */
+public class SmartScriptProgram implements CompiledScript {
+
+	/** TEXT constant: writes text kept at constant and the next one. */
+	private static final int TEXT = 0;
+	/** ECHO first count: writes registers from first. */
+	private static final int ECHO = 1;
+	/** INT register value. */
+	private static final int INT = 2;
+	/** DOUBLE register constant. */
+	private static final int DOUBLE = 3;
+	/** STRING register constant. */
+	private static final int STRING = 4;
+	/** LOAD register variable: copies loop variable. */
+	private static final int LOAD = 5;
+	/** Operators, ADD register: register = register + register+1. */
+	private static final int ADD = 6;
+	private static final int SUBTRACT = 7;
+	private static final int MULTIPLY = 8;
+	private static final int DIVIDE = 9;
+	/** Functions, FUNCTION register: arguments start at register. */
+	private static final int SIN = 10;
+	private static final int DECFMT = 11;
+	private static final int DUP = 12;
+	private static final int SWAP = 13;
+	private static final int SET_MIME_TYPE = 14;
+	private static final int PARAM_GET = 15;
+	private static final int PPARAM_GET = 16;
+	private static final int PPARAM_SET = 17;
+	private static final int PPARAM_DEL = 18;
+	private static final int TPARAM_GET = 19;
+	private static final int TPARAM_SET = 20;
+	private static final int TPARAM_DEL = 21;
+	/** TEST variable target: jumps to target if variable is greater than end. */
+	private static final int TEST = 22;
+	/** NEXT variable target: adds step to variable and jumps to target. */
+	private static final int NEXT = 23;
+
+	private static final int KIND_INT = 0;
+	private static final int KIND_DOUBLE = 1;
+	private static final int KIND_OBJECT = 2;
+
+	/** Registers of loop, variable is followed by end and step. */
+	private static final int LOOP_REGISTERS = 3;
+
+	private int[] code;
+	private Object[] constants;
+	private int registers;
+
+	/**
+	 * Constructor with 3 arguments.
+	 * @param code instructions
+	 * @param constants constants
+	 * @param registers number of registers
+	 */
+	private SmartScriptProgram(int[] code, Object[] constants, int registers) {
+		super();
+		this.code = code;
+		this.constants = constants;
+		this.registers = registers;
+	}
+
+	/**
+	 * Translates given document.
+	 * @param documentNode document
+	 * @return program
+	 * @throws UnsupportedOperationException if document would fail while
+	 *             executed
+	 */
+	public static SmartScriptProgram translate(DocumentNode documentNode) {
+		if (documentNode == null) {
+			throw new IllegalArgumentException("Document node cannot be null.");
+		}
+		Translator translator = new Translator(depth(documentNode) * LOOP_REGISTERS);
+		translator.children(documentNode);
+		return new SmartScriptProgram(Arrays.copyOf(translator.code, translator.length),
+				translator.constants.toArray(), translator.firstStack + translator.maxStack);
+	}
+
+	@Override
+	public void execute(RequestContext requestContext) {
+		new Execution(requestContext).run();
+	}
+
+	/**
+	 * Returns depth of the deepest loop in given node.
+	 * @param node node
+	 * @return number of nested loops
+	 */
+	private static int depth(Node node) {
+		int depth = 0;
+		for (int i = 0; i < node.numberOfChildren(); i++) {
+			depth = Math.max(depth, depth(node.getChild(i)));
+		}
+		return node instanceof ForLoopNode ? depth + 1 : depth;
+	}
+
+	/**
+	 * Translator of document to instructions. Loops use the first registers,
+	 * by depth of nesting, and echo stack uses registers after them.
+	 * @author Dario Vidas
+	 *
+	 */
+	private static class Translator {
+
+		private int[] code = new int[64];
+		private int length;
+		private List<Object> constants = new ArrayList<>();
+		private List<String> loops = new ArrayList<>();
+		private int firstStack;
+		private int maxStack;
+
+		/**
+		 * Constructor with 1 argument.
+		 * @param firstStack first register of echo stack
+		 */
+		Translator(int firstStack) {
+			this.firstStack = firstStack;
+		}
+
+		/**
+		 * Translates children of given node.
+		 * @param node node
+		 */
+		void children(Node node) {
+			final int size = node.numberOfChildren();
+			for (int i = 0; i < size; i++) {
+				Node child = node.getChild(i);
+				if (child instanceof TextNode) {
+					String text = ((TextNode) child).getText();
+					emit(TEXT, constant(text.getBytes(StandardCharsets.UTF_8)));
+					constant(text);
+				} else if (child instanceof EchoNode) {
+					echo((EchoNode) child);
+				} else if (child instanceof ForLoopNode) {
+					loop((ForLoopNode) child);
+				} else {
+					throw new UnsupportedOperationException("Unknown node.");
+				}
+			}
+		}
+
+		/**
+		 * Translates echo node.
+		 * @param node echo node
+		 */
+		private void echo(EchoNode node) {
+			int depth = 0;
+			for (Token t : node.getTokens()) {
+				int top = firstStack + depth;
+				if (t instanceof TokenConstantInteger || t instanceof TokenConstantDouble) {
+					number(top, t);
+					depth++;
+				} else if (t instanceof TokenString) {
+					emit(STRING, top, constant(((TokenString) t).getValue()));
+					depth++;
+				} else if (t instanceof TokenVariable) {
+					emit(LOAD, top, variable(((TokenVariable) t).getName()));
+					depth++;
+				} else if (t instanceof TokenOperator) {
+					depth = require(depth, 2);
+					emit(operation(((TokenOperator) t).getSymbol()), top - 2);
+					depth--;
+				} else if (t instanceof TokenFunction) {
+					depth = function(((TokenFunction) t).getName(), depth);
+				} else {
+					throw new UnsupportedOperationException("Unknown token.");
+				}
+				maxStack = Math.max(maxStack, depth);
+			}
+			emit(ECHO, firstStack, depth);
+		}
+
+		/**
+		 * Translates function call.
+		 * @param name function name
+		 * @param depth depth of stack before call
+		 * @return depth of stack after call
+		 */
+		private int function(String name, int depth) {
+			switch (name) {
+				case "sin":
+					emit(SIN, require(depth, 1) + firstStack - 1);
+					return depth;
+				case "decfmt":
+					emit(DECFMT, require(depth, 2) + firstStack - 2);
+					return depth - 1;
+				case "dup":
+					emit(DUP, require(depth, 1) + firstStack - 1);
+					return depth + 1;
+				case "swap":
+					emit(SWAP, require(depth, 2) + firstStack - 2);
+					return depth;
+				case "setMimeType":
+					emit(SET_MIME_TYPE, require(depth, 1) + firstStack - 1);
+					return depth - 1;
+				case "paramGet":
+					emit(PARAM_GET, require(depth, 2) + firstStack - 2);
+					return depth - 1;
+				case "pparamGet":
+					emit(PPARAM_GET, require(depth, 2) + firstStack - 2);
+					return depth - 1;
+				case "pparamSet":
+					emit(PPARAM_SET, require(depth, 2) + firstStack - 2);
+					return depth - 2;
+				case "pparamDel":
+					emit(PPARAM_DEL, require(depth, 1) + firstStack - 1);
+					return depth - 1;
+				case "tparamGet":
+					emit(TPARAM_GET, require(depth, 2) + firstStack - 2);
+					return depth - 1;
+				case "tparamSet":
+					emit(TPARAM_SET, require(depth, 2) + firstStack - 2);
+					return depth - 2;
+				case "tparamDel":
+					emit(TPARAM_DEL, require(depth, 1) + firstStack - 1);
+					return depth - 1;
+				default:
+					throw new UnsupportedOperationException("Unknown function.");
+			}
+		}
+
+		/**
+		 * Translates for loop.
+		 * @param node for loop node
+		 */
+		private void loop(ForLoopNode node) {
+			int variable = loops.size() * LOOP_REGISTERS;
+			number(variable, node.getStartExpression());
+			number(variable + 1, node.getEndExpression());
+			if (node.getStepExpression() == null) {
+				emit(INT, variable + 2, 1);
+			} else {
+				number(variable + 2, node.getStepExpression());
+			}
+			loops.add(node.getVariable().getName());
+
+			int head = length;
+			emit(TEST, variable, -1);
+			int exit = length - 1;
+			children(node);
+			emit(NEXT, variable, head);
+			code[exit] = length;
+			loops.remove(loops.size() - 1);
+		}
+
+		/**
+		 * Translates numeric constant.
+		 * @param register target register
+		 * @param token constant
+		 */
+		private void number(int register, Token token) {
+			if (token instanceof TokenConstantInteger) {
+				emit(INT, register, ((TokenConstantInteger) token).getValue());
+			} else if (token instanceof TokenConstantDouble) {
+				emit(DOUBLE, register, constant(((TokenConstantDouble) token).getValue()));
+			} else {
+				throw new UnsupportedOperationException("Loop bound is not a number.");
+			}
+		}
+
+		/**
+		 * Returns register of variable of the innermost running loop with
+		 * given name.
+		 * @param name variable name
+		 * @return register
+		 */
+		private int variable(String name) {
+			int index = loops.lastIndexOf(name);
+			if (index == -1) {
+				throw new UnsupportedOperationException("Variable is not defined.");
+			}
+			return index * LOOP_REGISTERS;
+		}
+
+		/**
+		 * Returns instruction of given operator.
+		 * @param symbol operator
+		 * @return instruction
+		 */
+		private static int operation(String symbol) {
+			switch (symbol) {
+				case "+":
+					return ADD;
+				case "-":
+					return SUBTRACT;
+				case "*":
+					return MULTIPLY;
+				case "/":
+					return DIVIDE;
+				default:
+					throw new UnsupportedOperationException("Unknown operator.");
+			}
+		}
+
+		/**
+		 * Checks whether stack has enough values.
+		 * @param depth depth of stack
+		 * @param needed number of values needed
+		 * @return depth of stack
+		 */
+		private static int require(int depth, int needed) {
+			if (depth < needed) {
+				throw new UnsupportedOperationException("Stack is empty.");
+			}
+			return depth;
+		}
+
+		/**
+		 * Adds constant.
+		 * @param value constant
+		 * @return index of constant
+		 */
+		private int constant(Object value) {
+			constants.add(value);
+			return constants.size() - 1;
+		}
+
+		/**
+		 * Appends instruction.
+		 * @param values instruction and its operands
+		 */
+		private void emit(int... values) {
+			if (length + values.length > code.length) {
+				code = Arrays.copyOf(code, Math.max(code.length * 2, length + values.length));
+			}
+			System.arraycopy(values, 0, code, length, values.length);
+			length += values.length;
+		}
+	}
+
+	/**
+	 * Single execution of program. Registers, builder and encoder are reused by
+	 * all echo nodes.
+	 * @author Dario Vidas
+	 *
+	 */
+	private class Execution {
+
+		private RequestContext requestContext;
+		private int[] kinds = new int[registers];
+		private int[] ints = new int[registers];
+		private double[] doubles = new double[registers];
+		private Object[] objects = new Object[registers];
+		private StringBuilder builder = new StringBuilder();
+		private char[] chars = new char[256];
+		private CharBuffer charBuffer = CharBuffer.wrap(chars);
+		private ByteBuffer bytes = ByteBuffer.allocate(1024);
+		private CharsetEncoder encoder;
+
+		/**
+		 * Constructor with 1 argument.
+		 * @param requestContext request context
+		 */
+		Execution(RequestContext requestContext) {
+			if (requestContext == null) {
+				throw new IllegalArgumentException("Request context cannot be null.");
+			}
+			this.requestContext = requestContext;
+		}
+
+		/**
+		 * Runs instructions.
+		 */
+		void run() {
+			final int[] code = SmartScriptProgram.this.code;
+			int pc = 0;
+			while (pc < code.length) {
+				int r = code[pc + 1];
+				switch (code[pc]) {
+					case TEXT:
+						ScriptRuntime.text(requestContext, (byte[]) constants[r], (String) constants[r + 1]);
+						pc += 2;
+						break;
+					case ECHO:
+						echo(r, code[pc + 2]);
+						pc += 3;
+						break;
+					case INT:
+						setInt(r, code[pc + 2]);
+						pc += 3;
+						break;
+					case DOUBLE:
+						setDouble(r, (Double) constants[code[pc + 2]]);
+						pc += 3;
+						break;
+					case STRING:
+						setObject(r, constants[code[pc + 2]]);
+						pc += 3;
+						break;
+					case LOAD:
+						copy(code[pc + 2], r);
+						pc += 3;
+						break;
+					case ADD:
+					case SUBTRACT:
+					case MULTIPLY:
+					case DIVIDE:
+						arithmetic(code[pc], r, r + 1);
+						pc += 2;
+						break;
+					case TEST:
+						pc = compare(r, r + 1) > 0 ? code[pc + 2] : pc + 3;
+						break;
+					case NEXT:
+						arithmetic(ADD, r, r + 2);
+						pc = code[pc + 2];
+						break;
+					default:
+						function(code[pc], r);
+						pc += 2;
+				}
+			}
+		}
+
+		/**
+		 * Runs function with arguments starting at given register.
+		 * @param function function instruction
+		 * @param r first argument
+		 */
+		private void function(int function, int r) {
+			String value;
+			switch (function) {
+				case SIN:
+					setDouble(r, Math.sin(kinds[r] == KIND_OBJECT ? ((Number) objects[r]).doubleValue() : number(r)));
+					break;
+				case DECFMT:
+					setObject(r, new DecimalFormat(string(r + 1)).format(value(r)));
+					break;
+				case DUP:
+					copy(r, r + 1);
+					break;
+				case SWAP:
+					swap(r, r + 1);
+					break;
+				case SET_MIME_TYPE:
+					requestContext.setMimeType(string(r));
+					break;
+				case PARAM_GET:
+					value = requestContext.getParameter(string(r));
+					parameter(r, value);
+					break;
+				case PPARAM_GET:
+					value = requestContext.getPersistentParameter(string(r));
+					parameter(r, value);
+					break;
+				case PPARAM_SET:
+					requestContext.setPersistentParameter(string(r + 1), string(r));
+					break;
+				case PPARAM_DEL:
+					requestContext.removePersistentParameter(string(r));
+					break;
+				case TPARAM_GET:
+					value = requestContext.getTemporaryParameter(string(r));
+					parameter(r, value);
+					break;
+				case TPARAM_SET:
+					requestContext.setTemporaryParameter(string(r + 1), string(r));
+					break;
+				case TPARAM_DEL:
+					requestContext.removeTemporaryParameter(string(r));
+					break;
+				default:
+					throw new IllegalStateException("Unknown instruction.");
+			}
+		}
+
+		/**
+		 * Sets result of parameter lookup, default value is in the next
+		 * register.
+		 * @param r register of parameter name
+		 * @param value parameter value, can be <code>null</code>
+		 */
+		private void parameter(int r, String value) {
+			if (value == null) {
+				copy(r + 1, r);
+			} else {
+				setObject(r, value);
+			}
+		}
+
+		/**
+		 * Computes operation of two registers like {@link ValueWrapper}, result
+		 * is stored in the first one.
+		 * @param operation operator instruction
+		 * @param r first operand
+		 * @param s second operand
+		 */
+		private void arithmetic(int operation, int r, int s) {
+			toNumber(r);
+			toNumber(s);
+			if (kinds[r] == KIND_DOUBLE || kinds[s] == KIND_DOUBLE) {
+				double x = number(r);
+				double y = number(s);
+				switch (operation) {
+					case ADD:
+						setDouble(r, x + y);
+						break;
+					case SUBTRACT:
+						setDouble(r, x - y);
+						break;
+					case MULTIPLY:
+						setDouble(r, x * y);
+						break;
+					default:
+						setDouble(r, x / y);
+				}
+			} else {
+				int x = ints[r];
+				int y = ints[s];
+				switch (operation) {
+					case ADD:
+						setInt(r, x + y);
+						break;
+					case SUBTRACT:
+						setInt(r, x - y);
+						break;
+					case MULTIPLY:
+						setInt(r, x * y);
+						break;
+					default:
+						setInt(r, x / y);
+				}
+			}
+		}
+
+		/**
+		 * Compares two numeric registers like {@link ValueWrapper}.
+		 * @param r first register
+		 * @param s second register
+		 * @return comparison result
+		 */
+		private int compare(int r, int s) {
+			if (kinds[r] == KIND_DOUBLE || kinds[s] == KIND_DOUBLE) {
+				return Double.compare(number(r), number(s));
+			}
+			return Integer.compare(ints[r], ints[s]);
+		}
+
+		/**
+		 * Converts object in register to number like {@link ValueWrapper}.
+		 * @param r register
+		 */
+		private void toNumber(int r) {
+			if (kinds[r] != KIND_OBJECT) {
+				return;
+			}
+			Object value = objects[r];
+			if (value == null) {
+				setInt(r, 0);
+			} else if (value instanceof Integer) {
+				setInt(r, (Integer) value);
+			} else if (value instanceof Double) {
+				setDouble(r, (Double) value);
+			} else if (value instanceof String) {
+				String s = (String) value;
+				if (s.indexOf('.') >= 0 || s.indexOf('E') >= 0) {
+					try {
+						setDouble(r, Double.parseDouble(s));
+						return;
+					} catch (NumberFormatException e) {
+						//not a double, maybe an integer
+					}
+				}
+				try {
+					setInt(r, Integer.parseInt(s));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Given string does not represent a number!");
+				}
+			} else {
+				throw new IllegalArgumentException("Object must be null or instance of Integer, Double or String!");
+			}
+		}
+
+		/**
+		 * Writes registers from given one.
+		 * @param first first register
+		 * @param count number of registers
+		 */
+		private void echo(int first, int count) {
+			builder.setLength(0);
+			for (int r = first; r < first + count; r++) {
+				switch (kinds[r]) {
+					case KIND_INT:
+						builder.append(ints[r]);
+						break;
+					case KIND_DOUBLE:
+						builder.append(doubles[r]);
+						break;
+					default:
+						builder.append(objects[r].toString());
+				}
+			}
+			try {
+				write();
+			} catch (IOException e) {
+				System.err.println("Echo node writing exception.");
+			}
+		}
+
+		/**
+		 * Codes builder with charset of request context and writes it. Bytes
+		 * are the same as those of <code>String.getBytes</code>.
+		 * @throws IOException exception while writing
+		 */
+		private void write() throws IOException {
+			Charset charset = requestContext.getCharset();
+			if (encoder == null || !encoder.charset().equals(charset)) {
+				encoder = charset.newEncoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			}
+			int length = builder.length();
+			if (length > chars.length) {
+				chars = new char[Math.max(length, chars.length * 2)];
+				charBuffer = CharBuffer.wrap(chars);
+			}
+			builder.getChars(0, length, chars, 0);
+			charBuffer.clear().limit(length);
+
+			encoder.reset();
+			while (encoder.encode(charBuffer, bytes, true) == CoderResult.OVERFLOW) {
+				writeBytes();
+			}
+			while (encoder.flush(bytes) == CoderResult.OVERFLOW) {
+				writeBytes();
+			}
+			writeBytes();		//always writes, even empty echo starts response
+		}
+
+		/**
+		 * Writes coded bytes.
+		 * @throws IOException exception while writing
+		 */
+		private void writeBytes() throws IOException {
+			requestContext.write(bytes.array(), 0, bytes.position());
+			bytes.clear();
+		}
+
+		/**
+		 * Returns numeric register as double.
+		 * @param r register
+		 * @return value
+		 */
+		private double number(int r) {
+			return kinds[r] == KIND_DOUBLE ? doubles[r] : ints[r];
+		}
+
+		/**
+		 * Returns register as object.
+		 * @param r register
+		 * @return value
+		 */
+		private Object value(int r) {
+			switch (kinds[r]) {
+				case KIND_INT:
+					return ints[r];
+				case KIND_DOUBLE:
+					return doubles[r];
+				default:
+					return objects[r];
+			}
+		}
+
+		/**
+		 * Returns register as string.
+		 * @param r register
+		 * @return value
+		 */
+		private String string(int r) {
+			return value(r).toString();
+		}
+
+		/**
+		 * Copies register.
+		 * @param from source register
+		 * @param to target register
+		 */
+		private void copy(int from, int to) {
+			kinds[to] = kinds[from];
+			ints[to] = ints[from];
+			doubles[to] = doubles[from];
+			objects[to] = objects[from];
+		}
+
+		/**
+		 * Swaps registers.
+		 * @param r first register
+		 * @param s second register
+		 */
+		private void swap(int r, int s) {
+			int kind = kinds[r];
+			int i = ints[r];
+			double d = doubles[r];
+			Object o = objects[r];
+			copy(s, r);
+			kinds[s] = kind;
+			ints[s] = i;
+			doubles[s] = d;
+			objects[s] = o;
+		}
+
+		/**
+		 * Sets register to integer.
+		 * @param r register
+		 * @param value value
+		 */
+		private void setInt(int r, int value) {
+			kinds[r] = KIND_INT;
+			ints[r] = value;
+		}
+
+		/**
+		 * Sets register to double.
+		 * @param r register
+		 * @param value value
+		 */
+		private void setDouble(int r, double value) {
+			kinds[r] = KIND_DOUBLE;
+			doubles[r] = value;
+		}
+
+		/**
+		 * Sets register to object.
+		 * @param r register
+		 * @param value value
+		 */
+		private void setObject(int r, Object value) {
+			kinds[r] = KIND_OBJECT;
+			objects[r] = value;
+		}
+	}
+}
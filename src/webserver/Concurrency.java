@@ -0,0 +1,49 @@
+package webserver;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares how server may run web worker concurrently. Workers without this
+ * annotation are serialized when they are mapped to url in workers config, and
+ * are instantiated per request when they are run through <code>/ext/</code>
+ * url.
+ * @author Dario Vidas
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Concurrency {
+
+	/**
+	 * Concurrency mode of worker.
+	 * @return mode
+	 */
+	Mode value();
+
+	/**
+	 * Number of worker instances in pool. Used only by {@link Mode#POOLED}.
+	 * @return number of instances
+	 */
+	int instances() default 1;
+
+	/**
+	 * Concurrency modes of web workers.
+	 * @author Dario Vidas
+	 *
+	 */
+	enum Mode {
+		/** Single instance is shared by all requests, without locking. */
+		THREAD_SAFE,
+		/** New instance is created for every request. */
+		PER_REQUEST,
+		/** Pool of instances, each request borrows one of them. */
+		POOLED,
+		/** Single instance which processes one request at a time. */
+		SERIALIZED
+	}
+}
@@ -0,0 +1,795 @@
+package webserver;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Session store kept in memory of server. Sessions are kept in concurrent map,
+ * so requests of different clients do not block each other. Expiry of every
+ * session is checked and extended atomically, session which is found is never
+ * removed at the same time. SIDs consist of random uppercase letters. They are
+ * generated by several random generators, each request picks one of them, so
+ * that creating sessions does not contend on a single generator.
+ * <p>
+ * Expired sessions are found with timer wheel. Time is divided into ticks of
+ * sweep interval, and every session is put in slot of tick in which it was
+ * going to expire. Requests only extend expiry time of session, they do not
+ * move it in wheel. When tick passes, its slot is emptied and sessions that
+ * were used in the meantime are moved to slot of their new expiry, others are
+ * removed. Every session is checked at most once per timeout, regardless of
+ * number of sessions and requests.
+ * <p>
+ * Sessions are kept compact. SID is packed in two longs, and parameters are
+ * kept in flat arrays until there are too many of them for linear search.
+ * Store estimates memory used by sessions, and if it exceeds configured
+ * limit, least recently used sessions are evicted. Since every session
+ * expires fixed time after its last use, wheel already orders sessions by
+ * their last use, so eviction simply removes due sessions tick by tick before
+ * their time.
+ * <p>
+ * Sessions can be kept in {@link SessionJournal}, so that they survive
+ * restart. Creation, removal and parameter changes are journaled when they
+ * happen. Extended expiry is journaled when sweep moves session in wheel, not
+ * on every request.
+ * @author Dario Vidas
+ *
+ */
+public class ConcurrentSessionStore implements SessionStore {
+
+	/** Number of characters of SID. */
+	public static final int SID_LENGTH = 20;
+	/** Estimated memory of session without its parameters, in bytes. */
+	private static final int SESSION_SIZE = 128;
+	/** Estimated memory of parameter without its characters, in bytes. */
+	private static final int PARAMETER_SIZE = 96;
+	/** Number of parameters kept in flat arrays. */
+	private static final int FLAT_PARAMETERS = 8;
+
+	private Map<Key, StoredSession> sessions = new ConcurrentHashMap<>();
+	private long timeout;
+	private long maxMemory;
+	private AtomicLong memory = new AtomicLong();
+	private SecureRandom[] randoms;
+
+	private long interval;
+	private List<Queue<StoredSession>> wheel;
+	private long lastTick;
+	private Lock sweepLock = new ReentrantLock();
+	private volatile int lastExpired;
+	private AtomicLong totalExpired = new AtomicLong();
+	private AtomicLong totalEvicted = new AtomicLong();
+	private volatile SessionJournal journal;
+
+	/**
+	 * Constructor with 3 arguments.
+	 * @param timeout time in seconds after which unused session expires
+	 * @param sweepInterval time in seconds between removals of expired
+	 *            sessions
+	 * @param maxMemory estimated memory in bytes which sessions can use, 0 if
+	 *            it is not limited
+	 */
+	@SuppressWarnings("unchecked")
+	public ConcurrentSessionStore(int timeout, int sweepInterval, long maxMemory) {
+		super();
+		if (timeout < 1 || sweepInterval < 1) {
+			throw new IllegalArgumentException("Session timeout and sweep interval must be positive.");
+		}
+		if (maxMemory < 0) {
+			throw new IllegalArgumentException("Session memory limit cannot be negative.");
+		}
+		this.timeout = timeout * 1000L;
+		this.maxMemory = maxMemory;
+		this.randoms = new SecureRandom[Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 2];
+		for (int i = 0; i < randoms.length; i++) {
+			randoms[i] = new SecureRandom();
+		}
+
+		this.interval = sweepInterval * 1000L;
+		int slots = (int) ((this.timeout + interval - 1) / interval) + 2;		//wheel covers whole timeout
+		this.wheel = new ArrayList<>(slots);
+		for (int i = 0; i < slots; i++) {
+			wheel.add(new ConcurrentLinkedQueue<>());
+		}
+		this.lastTick = System.currentTimeMillis() / interval;
+	}
+
+	/**
+	 * Restores sessions from given journal, and journals all later changes.
+	 * Must be called before store is used.
+	 * @param journal session journal
+	 * @throws IOException exception while reading journal
+	 */
+	public void restore(SessionJournal journal) throws IOException {
+		journal.replay(new Restorer());
+		for (StoredSession session : sessions.values()) {
+			schedule(session, lastTick + 1);		//expired sessions are removed by next sweep
+		}
+		this.journal = journal;
+		evictIfNeeded();
+	}
+
+	@Override
+	public Session find(String sid) {
+		Key key = Key.parse(sid);
+		if (key == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		StoredSession session = sessions.computeIfPresent(key, (k, s) -> {
+			if (s.validUntil < now) {
+				release(s);
+				return null;		//removes session, wheel drops it later
+			}
+			s.validUntil = now + timeout;
+			return s;
+		});
+		return session == null ? null : new Session(sid, session.parameters);
+	}
+
+	@Override
+	public Session create() {
+		while (true) {
+			Key key = generateKey();
+			StoredSession session = new StoredSession(key.high, key.low, System.currentTimeMillis() + timeout);
+			if (sessions.putIfAbsent(session, session) == null) {
+				memory.addAndGet(SESSION_SIZE);
+				if (journal != null) {
+					journal.create(session.high, session.low, session.validUntil);
+				}
+				schedule(session, 0);
+				evictIfNeeded();
+				return new Session(session.toString(), session.parameters);
+			}
+		}
+	}
+
+	/**
+	 * Session is kept in store, so only new session must be sent to client.
+	 * Cookie value is SID.
+	 */
+	@Override
+	public String save(Session session, boolean created) {
+		return created ? session.getId() : null;
+	}
+
+	/**
+	 * Removes expired sessions from slots of all ticks that passed since last
+	 * call. It is meant to be called once per sweep interval by single thread.
+	 * Journal, if there is one, is written to disk afterwards, and compacted if
+	 * needed.
+	 */
+	@Override
+	public int removeExpired() {
+		int removed;
+		sweepLock.lock();
+		try {
+			removed = sweep(System.currentTimeMillis());
+		} finally {
+			sweepLock.unlock();
+		}
+		lastExpired = removed;
+
+		if (journal != null) {
+			journal.force();
+			if (journal.isCompactionNeeded()) {
+				try {
+					journal.compact(this::writeSnapshot);
+				} catch (IOException e) {
+					e.printStackTrace();	//Log server exception, old files are kept
+				}
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Passes all sessions with their parameters to given snapshot visitor.
+	 * @param snapshot snapshot visitor
+	 */
+	private void writeSnapshot(SessionJournal.Visitor snapshot) {
+		for (StoredSession session : sessions.values()) {
+			snapshot.create(session.high, session.low, session.validUntil);
+			for (Map.Entry<String, String> e : session.parameters.entrySet()) {
+				snapshot.put(session.high, session.low, e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Getter for number of sessions removed by last call of
+	 * {@link #removeExpired()}.
+	 * @return number of sessions expired in last sweep
+	 */
+	public int getLastExpired() {
+		return lastExpired;
+	}
+
+	/**
+	 * Getter for number of sessions removed by all calls of
+	 * {@link #removeExpired()} and by eviction, which removes expired sessions
+	 * first.
+	 * @return total number of expired sessions
+	 */
+	public long getTotalExpired() {
+		return totalExpired.get();
+	}
+
+	/**
+	 * Getter for number of sessions evicted because memory limit was exceeded.
+	 * @return total number of evicted sessions
+	 */
+	@Override
+	public long getTotalEvicted() {
+		return totalEvicted.get();
+	}
+
+	/**
+	 * Getter for estimated memory used by sessions.
+	 * @return memory in bytes
+	 */
+	public long getMemory() {
+		return memory.get();
+	}
+
+	/**
+	 * Evicts least recently used sessions while memory limit is exceeded. Slots
+	 * of wheel are emptied from the oldest tick on, sessions that were used
+	 * since they were put in slot are moved to slot of their new expiry. Only
+	 * one thread evicts, others continue without waiting.
+	 */
+	private void evictIfNeeded() {
+		if (maxMemory == 0 || memory.get() <= maxMemory || !sweepLock.tryLock()) {
+			return;
+		}
+		try {
+			sweep(System.currentTimeMillis());		//expired sessions go first
+			long end = lastTick + wheel.size();
+			for (long t = lastTick + 1; t < end && memory.get() > maxMemory; t++) {
+				Queue<StoredSession> slot = wheel.get((int) (t % wheel.size()));
+				List<StoredSession> used = new ArrayList<>();
+				while (memory.get() > maxMemory) {
+					StoredSession session = slot.poll();
+					if (session == null) {
+						break;
+					}
+					if (sessions.get(session) != session) {
+						continue;
+					}
+					if (remove(session, (t + 1) * interval)) {
+						totalEvicted.incrementAndGet();
+					} else {
+						used.add(session);
+					}
+				}
+				for (StoredSession session : used) {
+					reschedule(session, t + 1);
+				}
+			}
+		} finally {
+			sweepLock.unlock();
+		}
+	}
+
+	/**
+	 * Empties slots of all ticks that passed since last sweep. Expired sessions
+	 * are removed, sessions used in the meantime are moved to slot of their new
+	 * expiry once slot is emptied. If sweep is late, slot can also hold sessions
+	 * expiring one turn of wheel later. Must be called while holding sweep lock.
+	 * @param now current time in milliseconds
+	 * @return number of removed sessions
+	 */
+	private int sweep(long now) {
+		long tick = now / interval;
+		int removed = 0;
+		for (long t = Math.max(lastTick + 1, tick - wheel.size() + 1); t <= tick; t++) {
+			Queue<StoredSession> slot = wheel.get((int) (t % wheel.size()));
+			List<StoredSession> used = new ArrayList<>();
+			for (StoredSession session = slot.poll(); session != null; session = slot.poll()) {
+				if (sessions.get(session) != session) {
+					continue;		//already removed when it was found expired
+				}
+				if (remove(session, now)) {
+					removed++;
+				} else {
+					used.add(session);
+				}
+			}
+			for (StoredSession session : used) {
+				reschedule(session, tick + 1);
+			}
+		}
+		lastTick = Math.max(lastTick, tick);
+		totalExpired.addAndGet(removed);
+		return removed;
+	}
+
+	/**
+	 * Removes given session if it is still in store and it is valid only until
+	 * given time. Check and removal are atomic, so session which is being used
+	 * is not removed.
+	 * @param session session
+	 * @param limit time in milliseconds before which session must expire
+	 * @return <code>true</code> if session is removed, <code>false</code>
+	 *         otherwise
+	 */
+	private boolean remove(StoredSession session, long limit) {
+		boolean[] removed = new boolean[1];
+		sessions.computeIfPresent(session, (k, s) -> {
+			if (s != session || s.validUntil >= limit) {
+				return s;
+			}
+			release(s);
+			removed[0] = true;
+			return null;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * Releases memory of session which is removed from store and journals its
+	 * removal.
+	 * @param session removed session
+	 */
+	private void release(StoredSession session) {
+		memory.addAndGet(-SESSION_SIZE - session.parameters.detach());
+		if (journal != null) {
+			journal.delete(session.high, session.low);
+		}
+	}
+
+	/**
+	 * Puts session in slot of tick in which it expires.
+	 * @param session session
+	 * @param minTick earliest tick for which session can be scheduled
+	 */
+	private void schedule(StoredSession session, long minTick) {
+		long tick = Math.max(session.validUntil / interval, minTick);
+		wheel.get((int) (tick % wheel.size())).add(session);
+	}
+
+	/**
+	 * Moves session which was used since it was put in wheel to slot of its new
+	 * expiry, and journals its new expiry.
+	 * @param session session
+	 * @param minTick earliest tick for which session can be scheduled
+	 */
+	private void reschedule(StoredSession session, long minTick) {
+		long validUntil = session.validUntil;
+		if (journal != null) {
+			journal.touch(session.high, session.low, validUntil);
+		}
+		schedule(session, minTick);
+	}
+
+	/**
+	 * Generates random SID of {@value #SID_LENGTH} uppercase letters.
+	 * @return packed SID
+	 */
+	private Key generateKey() {
+		return Key.generate(randoms[ThreadLocalRandom.current().nextInt(randoms.length)]);
+	}
+
+	/**
+	 * SID packed in two longs. Every letter takes 5 bits, each long holds half
+	 * of letters.
+	 * @author Dario Vidas
+	 *
+	 */
+	static class Key {
+
+		private static final int HALF = SID_LENGTH / 2;
+		private static final int BITS = 5;
+
+		final long high;
+		final long low;
+
+		/**
+		 * Constructor with 2 arguments.
+		 * @param high first half of letters
+		 * @param low second half of letters
+		 */
+		Key(long high, long low) {
+			this.high = high;
+			this.low = low;
+		}
+
+		/**
+		 * Generates random SID.
+		 * @param random random generator
+		 * @return packed SID
+		 */
+		static Key generate(Random random) {
+			long[] halves = new long[2];
+			for (int i = 0; i < SID_LENGTH; i++) {
+				halves[i / HALF] = halves[i / HALF] << BITS | random.nextInt(26);
+			}
+			return new Key(halves[0], halves[1]);
+		}
+
+		/**
+		 * Packs given SID.
+		 * @param sid SID sent by client
+		 * @return packed SID, or <code>null</code> if SID is not valid
+		 */
+		static Key parse(String sid) {
+			if (sid.length() != SID_LENGTH) {
+				return null;
+			}
+			long[] halves = new long[2];
+			for (int i = 0; i < SID_LENGTH; i++) {
+				char c = sid.charAt(i);
+				if (c < 'A' || c > 'Z') {
+					return null;
+				}
+				halves[i / HALF] = halves[i / HALF] << BITS | (c - 'A');
+			}
+			return new Key(halves[0], halves[1]);
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(high * 31 + low);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return high == other.high && low == other.low;
+		}
+
+		/**
+		 * Unpacks SID.
+		 * @return SID
+		 */
+		@Override
+		public String toString() {
+			char[] sid = new char[SID_LENGTH];
+			for (int i = 0; i < SID_LENGTH; i++) {
+				long half = i < HALF ? high : low;
+				sid[i] = (char) ('A' + (half >>> (BITS * (HALF - 1 - i % HALF)) & 31));
+			}
+			return new String(sid);
+		}
+	}
+
+	/**
+	 * Session kept in store. It is its own key in map of sessions.
+	 * @author Dario Vidas
+	 *
+	 */
+	private class StoredSession extends Key {
+
+		volatile long validUntil;
+		final Parameters parameters = new Parameters(this);
+
+		/**
+		 * Constructor with 3 arguments.
+		 * @param high first half of SID
+		 * @param low second half of SID
+		 * @param validUntil time in milliseconds until which session is valid
+		 */
+		StoredSession(long high, long low, long validUntil) {
+			super(high, low);
+			this.validUntil = validUntil;
+		}
+	}
+
+	/**
+	 * Persistent parameters of session. Few parameters are kept in flat arrays
+	 * and searched linearly, more of them are kept in hash map. Changes of
+	 * estimated memory are added to memory of store. Map is guarded by its own
+	 * lock, since only requests of the same client use it. Lock is used instead
+	 * of monitor, so virtual thread which writes journal while holding it does
+	 * not pin its carrier thread. Views of map are snapshots.
+	 * @author Dario Vidas
+	 *
+	 */
+	private class Parameters extends AbstractMap<String, String> {
+
+		private StoredSession owner;
+		private String[] keys;
+		private String[] values;
+		private int count;
+		private Map<String, String> map;
+		private long bytes;
+		private boolean detached;
+		private Lock lock = new ReentrantLock();
+
+		/**
+		 * Constructor with 1 argument.
+		 * @param owner session which has parameters
+		 */
+		Parameters(StoredSession owner) {
+			super();
+			this.owner = owner;
+		}
+
+		@Override
+		public String get(Object key) {
+			lock.lock();
+			try {
+				if (map != null) {
+					return map.get(key);
+				}
+				int index = indexOf(key);
+				return index == -1 ? null : values[index];
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			lock.lock();
+			try {
+				return map != null ? map.containsKey(key) : indexOf(key) != -1;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public String put(String key, String value) {
+			String old = putValue(Objects.requireNonNull(key), Objects.requireNonNull(value));
+			evictIfNeeded();
+			return old;
+		}
+
+		/**
+		 * Puts value under given key, switching to hash map when arrays are full.
+		 * @param key key
+		 * @param value value
+		 * @return previous value, or <code>null</code> if there was none
+		 */
+		private String putValue(String key, String value) {
+			lock.lock();
+			try {
+				String old;
+				if (map != null) {
+					old = map.put(key, value);
+				} else {
+					int index = indexOf(key);
+					if (index != -1) {
+						old = values[index];
+						values[index] = value;
+					} else if (count < FLAT_PARAMETERS) {
+						if (keys == null) {
+							keys = new String[FLAT_PARAMETERS];
+							values = new String[FLAT_PARAMETERS];
+						}
+						keys[count] = key;
+						values[count++] = value;
+						old = null;
+					} else {
+						map = new HashMap<>();
+						for (int i = 0; i < count; i++) {
+							map.put(keys[i], values[i]);
+						}
+						keys = null;
+						values = null;
+						old = map.put(key, value);
+					}
+				}
+				account(old == null ? PARAMETER_SIZE + key.length() + value.length() : value.length() - old.length());
+				if (!detached && journal != null) {
+					journal.put(owner.high, owner.low, key, value);
+				}
+				return old;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public String remove(Object key) {
+			lock.lock();
+			try {
+				String old;
+				if (map != null) {
+					old = map.remove(key);
+				} else {
+					int index = indexOf(key);
+					if (index == -1) {
+						return null;
+					}
+					old = values[index];
+					keys[index] = keys[--count];
+					values[index] = values[count];
+					keys[count] = null;
+					values[count] = null;
+				}
+				if (old != null) {
+					account(-(PARAMETER_SIZE + ((String) key).length() + old.length()));
+					if (!detached && journal != null) {
+						journal.remove(owner.high, owner.low, (String) key);
+					}
+				}
+				return old;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public int size() {
+			lock.lock();
+			try {
+				return map != null ? map.size() : count;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void clear() {
+			lock.lock();
+			try {
+				map = null;
+				keys = null;
+				values = null;
+				count = 0;
+				account(-bytes);
+				if (!detached && journal != null) {
+					journal.clear(owner.high, owner.low);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			lock.lock();
+			try {
+				Map<String, String> copy = map != null ? new HashMap<>(map) : new HashMap<>();
+				for (int i = 0; i < count && map == null; i++) {
+					copy.put(keys[i], values[i]);
+				}
+				return Collections.unmodifiableMap(copy).entrySet();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Detaches map from memory of store when session is removed. Later
+		 * changes are not added to memory of store.
+		 * @return estimated memory of parameters
+		 */
+		long detach() {
+			lock.lock();
+			try {
+				detached = true;
+				return bytes;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Adds change of estimated memory.
+		 * @param delta change in bytes
+		 */
+		private void account(long delta) {
+			bytes += delta;
+			if (!detached) {
+				memory.addAndGet(delta);
+			}
+		}
+
+		/**
+		 * Finds index of given key in arrays.
+		 * @param key key
+		 * @return index, or -1 if key is not found
+		 */
+		private int indexOf(Object key) {
+			for (int i = 0; i < count; i++) {
+				if (keys[i].equals(key)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Visitor which rebuilds sessions from replayed journal. Journal is not yet
+	 * set while it runs, so nothing is journaled again.
+	 * @author Dario Vidas
+	 *
+	 */
+	private class Restorer implements SessionJournal.Visitor {
+
+		private StoredSession last;
+
+		@Override
+		public void create(long high, long low, long validUntil) {
+			StoredSession session = new StoredSession(high, low, validUntil);
+			StoredSession old = sessions.put(session, session);
+			if (old != null) {
+				release(old);
+			}
+			memory.addAndGet(SESSION_SIZE);
+			last = session;
+		}
+
+		@Override
+		public void touch(long high, long low, long validUntil) {
+			StoredSession session = get(high, low);
+			if (session != null) {
+				session.validUntil = validUntil;
+			}
+		}
+
+		@Override
+		public void delete(long high, long low) {
+			StoredSession session = sessions.remove(new Key(high, low));
+			if (session != null) {
+				release(session);
+			}
+			last = null;
+		}
+
+		@Override
+		public void put(long high, long low, String name, String value) {
+			StoredSession session = get(high, low);
+			if (session != null) {
+				session.parameters.putValue(name, value);
+			}
+		}
+
+		@Override
+		public void remove(long high, long low, String name) {
+			StoredSession session = get(high, low);
+			if (session != null) {
+				session.parameters.remove(name);
+			}
+		}
+
+		@Override
+		public void clear(long high, long low) {
+			StoredSession session = get(high, low);
+			if (session != null) {
+				session.parameters.clear();
+			}
+		}
+
+		/**
+		 * Returns session with given SID. Records of the same session usually
+		 * follow each other, so the last session is checked first.
+		 * @param high first half of SID
+		 * @param low second half of SID
+		 * @return session, or <code>null</code> if there is no such session
+		 */
+		private StoredSession get(long high, long low) {
+			if (last == null || last.high != high || last.low != low) {
+				last = sessions.get(new Key(high, low));
+			}
+			return last;
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package webserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Session store which keeps sessions at clients. Persistent parameters and
+ * expiry time of session are kept in session cookie, signed with HMAC so that
+ * client cannot change them, and optionally encrypted so that client cannot
+ * read them. Server keeps no state, so any server which shares the secret can
+ * serve any request. Cookie is sent again only when parameters change or when
+ * half of its validity has passed. Session can have only as many parameters
+ * as fit in cookie of configured size. Cookie is made when response header is
+ * sent, so parameters cannot be changed afterwards, for example by worker
+ * which writes more than response buffer before changing them.
+ * @author Dario Vidas
+ *
+ */
+public class CookieSessionStore implements SessionStore {
+
+	private static final String MAC = "HmacSHA256";
+	private static final String CIPHER = "AES/GCM/NoPadding";
+	private static final int IV_LENGTH = 12;
+	private static final int TAG_BITS = 128;
+	private static final int MAC_LENGTH = 32;
+
+	private long timeout;
+	private int maxSize;
+	private SecretKeySpec signKey;
+	private SecretKeySpec encryptKey;
+	private SecureRandom random = new SecureRandom();
+
+	/**
+	 * Constructor with 4 arguments.
+	 * @param timeout time in seconds after which unused session expires
+	 * @param secret secret shared by all servers, keys are derived from it
+	 * @param encrypt whether cookie is encrypted
+	 * @param maxSize maximum length of cookie value
+	 */
+	public CookieSessionStore(int timeout, String secret, boolean encrypt, int maxSize) {
+		super();
+		if (timeout < 1) {
+			throw new IllegalArgumentException("Session timeout must be positive.");
+		}
+		if (secret == null || secret.length() < 16) {
+			throw new IllegalArgumentException("Session secret must have at least 16 characters.");
+		}
+		this.timeout = timeout * 1000L;
+		this.maxSize = maxSize;
+		this.signKey = new SecretKeySpec(deriveKey("sign", secret, 32), MAC);
+		this.encryptKey = encrypt ? new SecretKeySpec(deriveKey("encrypt", secret, 16), "AES") : null;
+	}
+
+	@Override
+	public Session find(String cookie) {
+		byte[] payload = verify(cookie);
+		if (payload == null) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			CookieParameters parameters = new CookieParameters(in.readLong());
+			if (parameters.validUntil < System.currentTimeMillis()) {
+				return null;
+			}
+			for (int n = in.readUnsignedShort(); n > 0; n--) {
+				parameters.load(in.readUTF(), in.readUTF());
+			}
+			return new Session(cookie, parameters);
+		} catch (IOException e) {
+			return null;		//signed by us, but not readable
+		}
+	}
+
+	@Override
+	public Session create() {
+		return new Session(null, new CookieParameters(System.currentTimeMillis() + timeout));
+	}
+
+	/**
+	 * Creates new cookie if session is new, if its parameters changed or if half
+	 * of its validity has passed.
+	 */
+	@Override
+	public String save(Session session, boolean created) {
+		CookieParameters parameters = (CookieParameters) session.getParameters();
+		parameters.saved = true;
+		long now = System.currentTimeMillis();
+		if (!created && !parameters.changed && parameters.validUntil - now > timeout / 2) {
+			return null;
+		}
+		parameters.validUntil = now + timeout;
+		return sign(parameters.encode());
+	}
+
+	/**
+	 * Sessions are kept by clients, so nothing is removed.
+	 */
+	@Override
+	public int removeExpired() {
+		return 0;
+	}
+
+	@Override
+	public int size() {
+		return 0;
+	}
+
+	/**
+	 * Encrypts, if needed, and signs payload.
+	 * @param payload payload
+	 * @return cookie value
+	 */
+	private String sign(byte[] payload) {
+		try {
+			if (encryptKey != null) {
+				byte[] iv = new byte[IV_LENGTH];
+				random.nextBytes(iv);
+				Cipher cipher = Cipher.getInstance(CIPHER);
+				cipher.init(Cipher.ENCRYPT_MODE, encryptKey, new GCMParameterSpec(TAG_BITS, iv));
+				byte[] encrypted = cipher.doFinal(payload);
+				payload = Arrays.copyOf(iv, IV_LENGTH + encrypted.length);
+				System.arraycopy(encrypted, 0, payload, IV_LENGTH, encrypted.length);
+			}
+			byte[] signed = Arrays.copyOf(payload, payload.length + MAC_LENGTH);
+			System.arraycopy(mac(payload), 0, signed, payload.length, MAC_LENGTH);
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(signed);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Cannot sign session cookie.", e);
+		}
+	}
+
+	/**
+	 * Checks signature of cookie and decrypts it, if needed.
+	 * @param cookie cookie value
+	 * @return payload, or <code>null</code> if cookie is not valid
+	 */
+	private byte[] verify(String cookie) {
+		if (cookie.length() > maxSize) {
+			return null;
+		}
+		try {
+			byte[] signed = Base64.getUrlDecoder().decode(cookie);
+			if (signed.length < MAC_LENGTH) {
+				return null;
+			}
+			byte[] payload = Arrays.copyOf(signed, signed.length - MAC_LENGTH);
+			byte[] mac = Arrays.copyOfRange(signed, payload.length, signed.length);
+			if (!MessageDigest.isEqual(mac, mac(payload))) {
+				return null;
+			}
+			if (encryptKey != null) {
+				if (payload.length < IV_LENGTH + TAG_BITS / 8) {
+					return null;
+				}
+				Cipher cipher = Cipher.getInstance(CIPHER);
+				cipher.init(Cipher.DECRYPT_MODE, encryptKey, new GCMParameterSpec(TAG_BITS, payload, 0, IV_LENGTH));
+				payload = cipher.doFinal(payload, IV_LENGTH, payload.length - IV_LENGTH);
+			}
+			return payload;
+		} catch (IllegalArgumentException | GeneralSecurityException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Computes HMAC of given bytes.
+	 * @param data bytes
+	 * @return HMAC
+	 * @throws GeneralSecurityException if HMAC is not supported
+	 */
+	private byte[] mac(byte[] data) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance(MAC);
+		mac.init(signKey);
+		return mac.doFinal(data);
+	}
+
+	/**
+	 * Derives key of given purpose from secret.
+	 * @param purpose purpose of key
+	 * @param secret secret
+	 * @param length key length in bytes, at most 32
+	 * @return key
+	 */
+	private static byte[] deriveKey(String purpose, String secret, int length) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(purpose.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			return Arrays.copyOf(digest.digest(secret.getBytes(StandardCharsets.UTF_8)), length);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("SHA-256 is not supported.", e);
+		}
+	}
+
+	/**
+	 * Returns length of cookie value with given payload length.
+	 * @param payload length of payload
+	 * @return length of cookie value
+	 */
+	private int cookieLength(int payload) {
+		int signed = payload + (encryptKey != null ? IV_LENGTH + TAG_BITS / 8 : 0) + MAC_LENGTH;
+		return (signed * 4 + 2) / 3;		//Base64 without padding
+	}
+
+	/**
+	 * Persistent parameters of session kept in cookie. Changes are tracked, so
+	 * that cookie is sent only when needed. Setting parameter which would not
+	 * fit in cookie is rejected. Map is synchronized, since only requests of the
+	 * same client use it. Views of map are snapshots.
+	 * @author Dario Vidas
+	 *
+	 */
+	private class CookieParameters extends AbstractMap<String, String> {
+
+		private Map<String, String> map = new HashMap<>();
+		private volatile long validUntil;
+		private volatile boolean changed;
+		private volatile boolean saved;
+
+		/**
+		 * Constructor with 1 argument.
+		 * @param validUntil time in milliseconds until which session is valid
+		 */
+		CookieParameters(long validUntil) {
+			super();
+			this.validUntil = validUntil;
+		}
+
+		@Override
+		public synchronized String get(Object key) {
+			return map.get(key);
+		}
+
+		@Override
+		public synchronized boolean containsKey(Object key) {
+			return map.containsKey(key);
+		}
+
+		@Override
+		public synchronized String put(String key, String value) {
+			checkNotSaved();
+			String old = map.put(Objects.requireNonNull(key), Objects.requireNonNull(value));
+			if (cookieLength(encode().length) > maxSize) {
+				if (old == null) {
+					map.remove(key);
+				} else {
+					map.put(key, old);
+				}
+				throw new IllegalArgumentException("Session parameters do not fit in cookie.");
+			}
+			changed = true;
+			return old;
+		}
+
+		@Override
+		public synchronized String remove(Object key) {
+			if (map.containsKey(key)) {
+				checkNotSaved();
+			}
+			String old = map.remove(key);
+			changed |= old != null;
+			return old;
+		}
+
+		@Override
+		public synchronized void clear() {
+			if (!map.isEmpty()) {
+				checkNotSaved();
+			}
+			changed |= !map.isEmpty();
+			map.clear();
+		}
+
+		@Override
+		public synchronized int size() {
+			return map.size();
+		}
+
+		@Override
+		public synchronized Set<Map.Entry<String, String>> entrySet() {
+			return Collections.unmodifiableMap(new HashMap<>(map)).entrySet();
+		}
+
+		/**
+		 * Checks whether parameters can still be changed. Changes made after
+		 * cookie is made would be lost.
+		 * @throws UnsupportedOperationException if cookie is already made
+		 */
+		private void checkNotSaved() {
+			if (saved) {
+				throw new UnsupportedOperationException("Cannot change session after header is sent.");
+			}
+		}
+
+		/**
+		 * Adds parameter read from cookie.
+		 * @param key key
+		 * @param value value
+		 */
+		synchronized void load(String key, String value) {
+			map.put(key, value);
+		}
+
+		/**
+		 * Encodes expiry time and parameters.
+		 * @return payload of cookie
+		 */
+		synchronized byte[] encode() {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				out.writeLong(validUntil);
+				out.writeShort(map.size());
+				for (Map.Entry<String, String> e : map.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeUTF(e.getValue());
+				}
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Session parameters do not fit in cookie.", e);
+			}
+			return bytes.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,404 @@
+package webserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental parser of HTTP request header. Parser works directly on bytes of
+ * buffer into which request is read, and can be resumed when more bytes
+ * arrive, bytes that are already parsed are not parsed again. Parser only
+ * remembers offsets of request line parts and headers, strings are created
+ * when they are asked for. Request line must have form
+ * <code>[method] [target] HTTP/[digit].[digit]</code>, lines can be ended with
+ * either \r\n or \n. Header is rejected if it has too many header lines or if
+ * it is too large.
+ * @author Dario Vidas
+ *
+ */
+public class HttpRequestParser {
+
+	/**
+	 * States of parser.
+	 */
+	private enum State {
+		REQUEST_START, METHOD, TARGET, VERSION, REQUEST_LINE_LF,
+		HEADER_START, HEADER_NAME, VALUE_START, VALUE, HEADER_LF, FINAL_LF,
+		DONE, ERROR
+	}
+
+	private int maxHeaderSize;
+	private int maxHeaders;
+	private byte[] data;
+	private int offset;
+	private int position = 0;
+	private State state = State.REQUEST_START;
+	private int methodStart;
+	private int targetStart;
+	private int versionStart;
+	private int versionEnd;
+	private int[] headers;
+	private int headerCount = 0;
+	private int headerEnd = -1;
+
+	/**
+	 * Constructor with 2 arguments.
+	 * @param maxHeaderSize maximum size of header in bytes
+	 * @param maxHeaders maximum number of header lines, not counting request
+	 *            line
+	 */
+	public HttpRequestParser(int maxHeaderSize, int maxHeaders) {
+		super();
+		if (maxHeaderSize < 1 || maxHeaders < 0) {
+			throw new IllegalArgumentException("Invalid header limits.");
+		}
+		this.maxHeaderSize = maxHeaderSize;
+		this.maxHeaders = maxHeaders;
+		this.headers = new int[maxHeaders * 4];
+	}
+
+	/**
+	 * Resets parser so that it can parse next request. Next request must start at
+	 * the beginning of buffer.
+	 */
+	public void reset() {
+		position = 0;
+		state = State.REQUEST_START;
+		headerCount = 0;
+		headerEnd = -1;
+	}
+
+	/**
+	 * Parses bytes of given buffer that were not yet parsed. Buffer must be backed
+	 * by array and must be in write mode, i.e. its position is number of bytes
+	 * read so far. Same buffer must be given until parser is reset.
+	 * @param buffer buffer with request
+	 * @return <code>true</code> if parsing is finished, either because whole
+	 *         header is parsed or because request is invalid, <code>false</code>
+	 *         if more bytes are needed
+	 */
+	public boolean parse(ByteBuffer buffer) {
+		data = buffer.array();
+		offset = buffer.arrayOffset();
+		int end = buffer.position();
+
+		for (; position < end && state != State.DONE && state != State.ERROR; position++) {
+			if (position >= maxHeaderSize) {
+				state = State.ERROR;
+				break;
+			}
+			next(data[offset + position]);
+		}
+		return state == State.DONE || state == State.ERROR;
+	}
+
+	/**
+	 * Moves parser to next state according to given byte at current position.
+	 * @param b byte to parse
+	 */
+	private void next(byte b) {
+		switch (state) {
+			case REQUEST_START:
+				if (b == '\r' || b == '\n') {	//empty lines before request are ignored
+					return;
+				}
+				methodStart = position;
+				state = isTokenChar(b) ? State.METHOD : State.ERROR;
+				return;
+
+			case METHOD:
+				if (b == ' ') {
+					targetStart = position + 1;
+					state = State.TARGET;
+				} else if (!isTokenChar(b)) {
+					state = State.ERROR;
+				}
+				return;
+
+			case TARGET:
+				if (b == ' ') {
+					versionStart = position + 1;
+					state = position == targetStart ? State.ERROR : State.VERSION;
+				} else if ((b & 0xFF) < 0x21 || b == 0x7f) {		//bytes of UTF-8 characters are allowed
+					state = State.ERROR;
+				}
+				return;
+
+			case VERSION:
+				if (b == '\r' || b == '\n') {
+					versionEnd = position;
+					if (!isVersionValid()) {
+						state = State.ERROR;
+					} else {
+						state = b == '\r' ? State.REQUEST_LINE_LF : State.HEADER_START;
+					}
+				}
+				return;
+
+			case REQUEST_LINE_LF:
+			case HEADER_LF:
+				state = b == '\n' ? State.HEADER_START : State.ERROR;
+				return;
+
+			case HEADER_START:
+				if (b == '\r') {
+					state = State.FINAL_LF;
+				} else if (b == '\n') {
+					finish();
+				} else if (!isTokenChar(b) || headerCount == maxHeaders) {	//folded lines are rejected too
+					state = State.ERROR;
+				} else {
+					headers[headerCount * 4] = position;
+					state = State.HEADER_NAME;
+				}
+				return;
+
+			case HEADER_NAME:
+				if (b == ':') {
+					headers[headerCount * 4 + 1] = position;
+					state = State.VALUE_START;
+				} else if (!isTokenChar(b)) {
+					state = State.ERROR;
+				}
+				return;
+
+			case VALUE_START:
+				if (b == ' ' || b == '\t') {
+					return;
+				}
+				headers[headerCount * 4 + 2] = position;
+				headers[headerCount * 4 + 3] = position;
+				state = State.VALUE;
+				value(b);
+				return;
+
+			case VALUE:
+				value(b);
+				return;
+
+			case FINAL_LF:
+				if (b == '\n') {
+					finish();
+				} else {
+					state = State.ERROR;
+				}
+				return;
+
+			default:
+				return;
+		}
+	}
+
+	/**
+	 * Parses byte of header value.
+	 * @param b byte to parse
+	 */
+	private void value(byte b) {
+		if (b == '\r' || b == '\n') {
+			headerCount++;
+			state = b == '\r' ? State.HEADER_LF : State.HEADER_START;
+		} else if (b != ' ' && b != '\t') {
+			headers[headerCount * 4 + 3] = position + 1;	//trailing whitespace is not part of value
+		}
+	}
+
+	/**
+	 * Marks header as parsed. Header ends after current byte.
+	 */
+	private void finish() {
+		headerEnd = position + 1;
+		state = State.DONE;
+	}
+
+	/**
+	 * Checks whether version of request line has form HTTP/[digit].[digit].
+	 * @return <code>true</code> if version is valid, <code>false</code>
+	 *         otherwise
+	 */
+	private boolean isVersionValid() {
+		if (versionEnd - versionStart != 8 || !regionEquals(versionStart, "HTTP/", false)) {
+			return false;
+		}
+		int i = offset + versionStart + 5;
+		return isDigit(data[i]) && data[i + 1] == '.' && isDigit(data[i + 2]);
+	}
+
+	/**
+	 * Checks whether whole header was parsed.
+	 * @return <code>true</code> if header is parsed, <code>false</code>
+	 *         otherwise
+	 */
+	public boolean isComplete() {
+		return state == State.DONE;
+	}
+
+	/**
+	 * Checks whether request is invalid. Request is invalid if its request line
+	 * or any header line is malformed, or if it exceeds header limits.
+	 * @return <code>true</code> if request is invalid, <code>false</code>
+	 *         otherwise
+	 */
+	public boolean isError() {
+		return state == State.ERROR;
+	}
+
+	/**
+	 * Returns position in buffer right after the empty line which ends header.
+	 * Bytes after this position belong to request body or to next request.
+	 * @return end of header, or -1 if header is not parsed
+	 */
+	public int getHeaderEnd() {
+		return headerEnd;
+	}
+
+	/**
+	 * Returns request method.
+	 * @return method
+	 */
+	public String getMethod() {
+		return string(methodStart, targetStart - 1, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Returns request target, i.e. path with optional query.
+	 * @return target
+	 */
+	public String getTarget() {
+		return string(targetStart, versionStart - 1, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns request version, e.g. HTTP/1.1.
+	 * @return version
+	 */
+	public String getVersion() {
+		return string(versionStart, versionEnd, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Returns number of header lines.
+	 * @return number of headers
+	 */
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	/**
+	 * Returns value of first header with given name. Header names are compared
+	 * ignoring case, leading and trailing whitespace of value is dropped.
+	 * @param name header name
+	 * @return header value if header is found, <code>null</code> otherwise
+	 */
+	public String getHeader(String name) {
+		for (int i = 0; i < headerCount; i++) {
+			if (isHeader(i, name)) {
+				return headerValue(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns values of all headers with given name, in order in which they were
+	 * sent.
+	 * @param name header name
+	 * @return list of values, empty if there is no such header
+	 */
+	public List<String> getHeaders(String name) {
+		List<String> values = new ArrayList<>();
+		for (int i = 0; i < headerCount; i++) {
+			if (isHeader(i, name)) {
+				values.add(headerValue(i));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Checks whether header with given index has given name, ignoring case.
+	 * @param index header index
+	 * @param name header name
+	 * @return <code>true</code> if name matches, <code>false</code> otherwise
+	 */
+	private boolean isHeader(int index, String name) {
+		int start = headers[index * 4];
+		return headers[index * 4 + 1] - start == name.length() && regionEquals(start, name, true);
+	}
+
+	/**
+	 * Returns value of header with given index.
+	 * @param index header index
+	 * @return value
+	 */
+	private String headerValue(int index) {
+		return string(headers[index * 4 + 2], headers[index * 4 + 3], StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Checks whether bytes starting at given position are equal to given ASCII
+	 * string.
+	 * @param start start position
+	 * @param s string to compare with
+	 * @param ignoreCase whether case of letters is ignored
+	 * @return <code>true</code> if bytes are equal, <code>false</code> otherwise
+	 */
+	private boolean regionEquals(int start, String s, boolean ignoreCase) {
+		for (int i = 0; i < s.length(); i++) {
+			int b = data[offset + start + i];
+			int c = s.charAt(i);
+			if (ignoreCase) {
+				b = toLowerCase(b);
+				c = toLowerCase(c);
+			}
+			if (b != c) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates string from bytes between given positions.
+	 * @param start start position, inclusive
+	 * @param end end position, exclusive
+	 * @param charset charset of bytes
+	 * @return new string
+	 */
+	private String string(int start, int end, Charset charset) {
+		return new String(data, offset + start, end - start, charset);
+	}
+
+	/**
+	 * Checks whether byte is allowed in method and header names.
+	 * @param b byte
+	 * @return <code>true</code> if it is token character, <code>false</code>
+	 *         otherwise
+	 */
+	private static boolean isTokenChar(byte b) {
+		if (b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || isDigit(b)) {
+			return true;
+		}
+		return "!#$%&'*+-.^_`|~".indexOf(b) != -1;
+	}
+
+	/**
+	 * Checks whether byte is ASCII digit.
+	 * @param b byte
+	 * @return <code>true</code> if it is digit, <code>false</code> otherwise
+	 */
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	/**
+	 * Converts ASCII upper case letter to lower case.
+	 * @param c character
+	 * @return lower case character, or same character if it is not upper case
+	 *         letter
+	 */
+	private static int toLowerCase(int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+}
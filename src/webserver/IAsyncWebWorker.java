@@ -0,0 +1,24 @@
+package webserver;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Interface for web workers which process requests asynchronously. Worker
+ * starts processing and returns immediately, server thread is released while
+ * worker waits for its dependencies and connection stays open. Worker writes
+ * response to request context before returned stage completes, server then
+ * finishes the response. Such workers can be used wherever
+ * <code>IWebWorker</code> can.
+ * @author Dario Vidas
+ *
+ */
+public interface IAsyncWebWorker {
+
+	/**
+	 * Starts processing request for web worker.
+	 * @param context request context
+	 * @return stage which completes when response is written, completing it
+	 *         exceptionally sends status 500 if nothing was written yet
+	 */
+	CompletionStage<?> processRequestAsync(RequestContext context);
+}
@@ -2,35 +2,63 @@ package webserver;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
  * Instances of this class act as context for communication between client and
- * server..
+ * server.. Response body is collected in buffer of configurable size and is
+ * sent when buffer fills up, when it is flushed or when response is finished.
+ * If whole body fits in buffer, its length is known when header is sent.
+ * Otherwise, if client allows it, body is sent in chunks, one chunk per flush
+ * of buffer.
  * @author Dario Vidas
  * 
  */
 public class RequestContext {
 
+	/** Default size of response buffer in bytes. */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
 	private OutputStream outputStream;
+	private WritableByteChannel outputChannel;
 	private Charset charset;
 	private String encoding = "UTF-8";
 	private int statusCode = 200;
 	private String statusText = "OK";
 	private String mimeType = "text/html";
-	private int length = -1;
+	private long length = -1;
 	private Map<String, String> parameters;
 	private Map<String, String> temporaryParameters = new HashMap<>();
 	private Map<String, String> persistentParameters;
 	private List<RCCookie> outputCookies;
+	private SessionSource sessionSource;
+	private Map<String, String> headers = new LinkedHashMap<>();
 	private boolean headerGenerated = false;
+	private boolean headerSent = false;
+	private boolean keepAlive = false;
+	private boolean chunkingAllowed = false;
+	private boolean chunked = false;
+	private boolean finished = false;
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+	private byte[] buffer;
+	private int buffered = 0;
 
 	/**
 	 * Constructor with 4 arguments. Constructs object with given output stream,
@@ -73,6 +101,26 @@ public class RequestContext {
 		}
 	}
 
+	/**
+	 * Sets source of session of this request. Persistent parameters are then
+	 * taken from session when they are first used, and session is created only
+	 * when persistent parameter is set.
+	 * @param sessionSource session source
+	 */
+	void setSessionSource(SessionSource sessionSource) {
+		this.sessionSource = sessionSource;
+		this.persistentParameters = null;
+	}
+
+	/**
+	 * Sets channel underlying output stream. Files are transfered directly to
+	 * this channel. If it is not set, files are transfered to output stream.
+	 * @param outputChannel output channel
+	 */
+	void setOutputChannel(WritableByteChannel outputChannel) {
+		this.outputChannel = outputChannel;
+	}
+
 	/**
 	 * Method sets encoding. Setting encoding will become unavailable after the first
 	 * call of method <code>write</code>.
@@ -85,6 +133,15 @@ public class RequestContext {
 		this.encoding = encoding;
 	}
 
+	/**
+	 * Returns charset with which strings are coded. It can no longer change
+	 * after the first call of method <code>write</code>.
+	 * @return charset
+	 */
+	public Charset getCharset() {
+		return headerGenerated ? charset : Charset.forName(encoding);
+	}
+
 	/**
 	 * Method sets status code. Setting status code will become unavailable after the
 	 * first call of method <code>write</code>.
@@ -126,7 +183,7 @@ public class RequestContext {
 	 * after the first call of method <code>write</code>.
 	 * @param length file length
 	 */
-	public void setLength(int length) {
+	public void setLength(long length) {
 		if (headerGenerated) {
 			throw new UnsupportedOperationException("Cannot write length.");
 		}
@@ -136,6 +193,22 @@ public class RequestContext {
 		this.length = length;
 	}
 
+	/**
+	 * Method sets size of response buffer. Size 0 means that everything is
+	 * written to output immediately. Setting buffer size will become unavailable
+	 * after the first call of method <code>write</code>.
+	 * @param bufferSize buffer size in bytes
+	 */
+	public void setBufferSize(int bufferSize) {
+		if (headerGenerated) {
+			throw new UnsupportedOperationException("Cannot write buffer size.");
+		}
+		if (bufferSize < 0) {
+			throw new IllegalArgumentException("Buffer size cannot be less than zero.");
+		}
+		this.bufferSize = bufferSize;
+	}
+
 	/**
 	 * Method adds cookie to list. Adding cookies will become unavailable after
 	 * the first call of method <code>write</code>.
@@ -148,6 +221,77 @@ public class RequestContext {
 		outputCookies.add(cookie);
 	}
 
+	/**
+	 * Method adds header with given name and value. Header is written after
+	 * connection header and before cookies. Adding header with same name again
+	 * replaces its value. Adding headers will become unavailable after the first
+	 * call of method <code>write</code>.
+	 * @param name header name
+	 * @param value header value
+	 */
+	public void addHeader(String name, String value) {
+		if (headerGenerated) {
+			throw new UnsupportedOperationException("Cannot add headers.");
+		}
+		if (name == null || value == null) {
+			throw new IllegalArgumentException("Header name or value cannot be null.");
+		}
+		headers.put(name, value);
+	}
+
+	/**
+	 * Sets whether client wants connection to be kept alive after this response.
+	 * Connection will be kept alive only if response length is known when header
+	 * is generated.
+	 * @param keepAlive <code>true</code> if connection should be kept alive
+	 */
+	void setKeepAlive(boolean keepAlive) {
+		if (headerGenerated) {
+			throw new UnsupportedOperationException("Cannot write keep alive.");
+		}
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Sets whether response of unknown length can be sent with chunked transfer
+	 * encoding. Only HTTP/1.1 clients understand chunked responses.
+	 * @param chunkingAllowed <code>true</code> if chunked encoding can be used
+	 */
+	void setChunkingAllowed(boolean chunkingAllowed) {
+		if (headerGenerated) {
+			throw new UnsupportedOperationException("Cannot write chunking.");
+		}
+		this.chunkingAllowed = chunkingAllowed;
+	}
+
+	/**
+	 * Checks whether connection can be kept alive after this response.
+	 * @return <code>true</code> if connection can be kept alive,
+	 *         <code>false</code> otherwise
+	 */
+	boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Checks whether anything was sent to client. Response which is only
+	 * buffered can still be dropped and replaced.
+	 * @return <code>true</code> if header is sent, <code>false</code> otherwise
+	 */
+	boolean isHeaderSent() {
+		return headerSent;
+	}
+
+	/**
+	 * Checks whether header was already generated, i.e. whether anything was
+	 * written to this context.
+	 * @return <code>true</code> if header is generated, <code>false</code>
+	 *         otherwise
+	 */
+	public boolean isHeaderGenerated() {
+		return headerGenerated;
+	}
+
 	/**
 	 * Method returns parameters map.
 	 * @return reference to map
@@ -173,11 +317,37 @@ public class RequestContext {
 	}
 
 	/**
-	 * Method returns persistent parameters map.
+	 * Returns session of client. Session is looked up only when it is first
+	 * needed, and if it does not exist it can be created. Session of new client
+	 * is sent to client in cookie, so it can be created only until header is
+	 * sent.
+	 * @param create whether session is created if client has none
+	 * @return session, or <code>null</code> if client has no session and it is
+	 *         not created, or if context is not bound to session store
+	 * @throws UnsupportedOperationException if session must be created after
+	 *             header is sent
+	 */
+	public Session getSession(boolean create) {
+		if (sessionSource == null) {
+			return null;
+		}
+		Session session = sessionSource.getSession(false);
+		if (session == null && create) {
+			if (headerSent) {
+				throw new UnsupportedOperationException("Cannot create session after header is sent.");
+			}
+			session = sessionSource.getSession(true);
+		}
+		return session;
+	}
+
+	/**
+	 * Method returns persistent parameters map. Session is created if client has
+	 * none.
 	 * @return reference to map
 	 */
 	public Map<String, String> getPersistentParameters() {
-		return persistentParameters;
+		return persistentParameters(true);
 	}
 
 	/**
@@ -213,7 +383,8 @@ public class RequestContext {
 	 * @return value if it exists, <code>null</code> otherwise
 	 */
 	public String getPersistentParameter(String name) {
-		return persistentParameters.get(name);
+		Map<String, String> map = persistentParameters(false);
+		return map == null ? null : map.get(name);
 	}
 
 	/**
@@ -221,24 +392,49 @@ public class RequestContext {
 	 * @return set
 	 */
 	public Set<String> getPersistentParameterNames() {
-		return new HashSet<>(persistentParameters.keySet());
+		Map<String, String> map = persistentParameters(false);
+		return map == null ? new HashSet<>() : new HashSet<>(map.keySet());
 	}
 
 	/**
-	 * Adds persistent parameter with given name and value.
+	 * Adds persistent parameter with given name and value. Session is created if
+	 * client has none.
 	 * @param name name key
 	 * @param value value
+	 * @throws UnsupportedOperationException if header is already sent and
+	 *             session store cannot keep the change
 	 */
 	public void setPersistentParameter(String name, String value) {
-		persistentParameters.put(name, value);
+		persistentParameters(true).put(name, value);
 	}
 
 	/**
 	 * Removes persistent parameter under given name.
 	 * @param name name key
+	 * @throws UnsupportedOperationException if header is already sent and
+	 *             session store cannot keep the change
 	 */
 	public void removePersistentParameter(String name) {
-		persistentParameters.remove(name);
+		Map<String, String> map = persistentParameters(false);
+		if (map != null) {
+			map.remove(name);
+		}
+	}
+
+	/**
+	 * Returns persistent parameters map, taking it from session on first use.
+	 * @param create whether session is created if client has none
+	 * @return map, or <code>null</code> if there is no session and it is not
+	 *         created
+	 */
+	private Map<String, String> persistentParameters(boolean create) {
+		if (persistentParameters == null) {
+			Session session = getSession(create);
+			if (session != null) {
+				persistentParameters = session.getParameters();
+			}
+		}
+		return persistentParameters;
 	}
 
 	/**
@@ -283,10 +479,104 @@ public class RequestContext {
 	 * @throws IOException exception while writing to stream
 	 */
 	public RequestContext write(byte[] data) throws IOException {
-		if (!headerGenerated) {
-			generateHeader();
+		return write(data, 0, data.length);
+	}
+
+	/**
+	 * Method writes part of given byte array to output stream. Bytes are buffered
+	 * if they fit in buffer, otherwise buffer is flushed and large writes go to
+	 * output directly.
+	 * @param data byte array to write
+	 * @param offset offset of first byte to write
+	 * @param length number of bytes to write
+	 * @return reference to this object
+	 * @throws IOException exception while writing to stream
+	 */
+	public RequestContext write(byte[] data, int offset, int length) throws IOException {
+		start();
+		if (length > bufferSize - buffered) {
+			flushBuffer();
+			if (length >= bufferSize) {
+				sendBody(EMPTY, ByteBuffer.wrap(data, offset, length));
+				return this;
+			}
+		}
+		System.arraycopy(data, offset, buffer(), buffered, length);
+		buffered += length;
+		return this;
+	}
+
+	/**
+	 * Method writes remaining bytes of given buffer to output. Buffer position is
+	 * moved to its limit.
+	 * @param data buffer to write
+	 * @return reference to this object
+	 * @throws IOException exception while writing to output
+	 */
+	public RequestContext write(ByteBuffer data) throws IOException {
+		start();
+		int length = data.remaining();
+		if (length > bufferSize - buffered) {
+			flushBuffer();
+			sendBody(EMPTY, data);
+		} else {
+			data.get(buffer(), buffered, length);
+			buffered += length;
+		}
+		return this;
+	}
+
+	/**
+	 * Method writes already prepared header followed by given body. Prepared
+	 * header must be same as the one this context would generate. Header and
+	 * body are written in single gathering write if possible.
+	 * @param header prepared header
+	 * @param body body to write
+	 * @throws IOException exception while writing to output
+	 */
+	void write(byte[] header, ByteBuffer body) throws IOException {
+		if (headerGenerated) {
+			throw new UnsupportedOperationException("Header is already generated.");
+		}
+		start();
+		headerSent = true;
+		send(ByteBuffer.wrap(header), body);
+	}
+
+	/**
+	 * Method transfers part of given file to output. If output channel is set,
+	 * bytes are transfered without copying them to user space. Buffered bytes
+	 * are flushed first. If response is chunked, transfered bytes are sent as
+	 * single chunk.
+	 * @param file file to transfer
+	 * @param position position of first byte to transfer
+	 * @param count number of bytes to transfer
+	 * @return reference to this object
+	 * @throws IOException exception while reading file or writing to output
+	 */
+	public RequestContext write(FileChannel file, long position, long count) throws IOException {
+		start();
+		flushBuffer();
+		if (count <= 0) {
+			return this;		//empty chunk would end chunked response
+		}
+		if (chunked) {
+			send(chunkHeader(count));
+		}
+		outputStream.flush();
+
+		WritableByteChannel target = outputChannel != null ? outputChannel : Channels.newChannel(outputStream);
+		while (count > 0) {
+			long transfered = file.transferTo(position, count, target);
+			if (transfered <= 0 && position >= file.size()) {
+				throw new IOException("File is shorter than expected.");
+			}
+			position += transfered;
+			count -= transfered;
+		}
+		if (chunked) {
+			send(ByteBuffer.wrap(CRLF));
 		}
-		outputStream.write(data);
 		return this;
 	}
 
@@ -298,17 +588,163 @@ public class RequestContext {
 	 * @throws IOException exception while writing to stream
 	 */
 	public RequestContext write(String text) throws IOException {
+		start();
+		return write(codeString(text, charset));
+	}
+
+	/**
+	 * Sends header, if it is not yet sent, and all buffered bytes to client.
+	 * Response length is not known after header is sent, so workers should
+	 * flush only when they want client to get first bytes early.
+	 * @throws IOException exception while writing to stream
+	 */
+	public void flush() throws IOException {
+		start();
+		flushBuffer();
+		outputStream.flush();
+	}
+
+	/**
+	 * Finishes response. If header is not yet sent and length is not set, whole
+	 * body is in buffer so its length is used as response length. Header, if it
+	 * is not yet sent, and all buffered bytes are sent to client. Chunked
+	 * response is ended with last chunk. If nothing was written, response with
+	 * empty body is sent. Finishing response more than once has no effect.
+	 * @throws IOException exception while writing to stream
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		start();
+		if (!headerSent && length == -1 && hasBody()) {
+			length = buffered;
+		}
+		flushBuffer();
+		if (chunked) {
+			send(ByteBuffer.wrap(LAST_CHUNK));
+		}
+		outputStream.flush();
+		finished = true;
+	}
+
+	/**
+	 * Marks header as generated when something is written for the first time.
+	 * From then on, header can no longer be changed.
+	 */
+	private void start() {
 		if (!headerGenerated) {
-			generateHeader();
+			headerGenerated = true;
+			charset = Charset.forName(encoding);
+		}
+	}
+
+	/**
+	 * Returns response buffer, allocating it if needed.
+	 * @return buffer
+	 */
+	private byte[] buffer() {
+		if (buffer == null) {
+			buffer = new byte[bufferSize];
+		}
+		return buffer;
+	}
+
+	/**
+	 * Sends header if it is not yet sent, followed by buffered bytes. Buffer is
+	 * empty afterwards.
+	 * @throws IOException exception while writing to output
+	 */
+	private void flushBuffer() throws IOException {
+		ByteBuffer body = buffered > 0 ? ByteBuffer.wrap(buffer, 0, buffered) : EMPTY;
+		if (!headerSent) {
+			if (sessionSource != null) {
+				sessionSource.saveSession();
+			}
+			headerSent = true;
+			sendBody(ByteBuffer.wrap(generateHeader()), body);
+		} else if (buffered > 0) {
+			sendBody(EMPTY, body);
+		}
+		buffered = 0;
+	}
+
+	/**
+	 * Sends header followed by body bytes. If response is chunked, body is sent
+	 * as single chunk.
+	 * @param header header to send, empty if header is already sent
+	 * @param body body to send
+	 * @throws IOException exception while writing to output
+	 */
+	private void sendBody(ByteBuffer header, ByteBuffer body) throws IOException {
+		if (chunked && body.hasRemaining()) {
+			send(header, chunkHeader(body.remaining()), body, ByteBuffer.wrap(CRLF));
+		} else {
+			send(header, body);
+		}
+	}
+
+	/**
+	 * Creates chunk header for chunk of given size.
+	 * @param size chunk size
+	 * @return chunk header
+	 */
+	private static ByteBuffer chunkHeader(long size) {
+		return ByteBuffer.wrap(codeString(Long.toHexString(size) + "\r\n"));
+	}
+
+	/**
+	 * Sends given buffers to output. They are written in single gathering write
+	 * if output channel supports it.
+	 * @param buffers buffers to send
+	 * @throws IOException exception while writing to output
+	 */
+	private void send(ByteBuffer... buffers) throws IOException {
+		if (outputChannel instanceof GatheringByteChannel) {
+			outputStream.flush();
+			long remaining = 0;
+			for (ByteBuffer b : buffers) {
+				remaining += b.remaining();
+			}
+			while (remaining > 0) {
+				remaining -= ((GatheringByteChannel) outputChannel).write(buffers);
+			}
+		} else {
+			for (ByteBuffer b : buffers) {
+				writeBuffer(b);
+			}
+		}
+	}
+
+	/**
+	 * Writes remaining bytes of buffer to output channel if it is set, or to
+	 * output stream otherwise.
+	 * @param data buffer to write
+	 * @throws IOException exception while writing to output
+	 */
+	private void writeBuffer(ByteBuffer data) throws IOException {
+		if (outputChannel != null) {
+			outputStream.flush();
+			while (data.hasRemaining()) {
+				outputChannel.write(data);
+			}
+		} else if (data.hasArray()) {
+			outputStream.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			data.position(data.limit());
+		} else {
+			byte[] chunk = new byte[Math.min(data.remaining(), 8192)];
+			while (data.hasRemaining()) {
+				int length = Math.min(chunk.length, data.remaining());
+				data.get(chunk, 0, length);
+				outputStream.write(chunk, 0, length);
+			}
 		}
-		outputStream.write(codeString(text, charset));
-		return this;
 	}
 
 	/**
-	 * This method is called first time one of the methods <code>write</code> is
-	 * called. This method creates header and sends it to output stream. Every
-	 * line ends with \r\n.
+	 * This method is called when header is sent for the first time, i.e. when
+	 * buffer is flushed for the first time. This method creates header as single
+	 * byte array. Every line ends with \r\n.
 	 * Header has this form (variable content is inside brackets):
 	 * 
 	 * First line:
@@ -320,6 +756,18 @@ public class RequestContext {
 	 * 
 	 * Third line:
 	 * Content-Length: [length]
+	 * --only if length is set, or if whole body is buffered when response is
+	 * finished
+	 * Transfer-Encoding: chunked
+	 * --instead of length, if length is not known and chunking is allowed
+	 * 
+	 * Fourth line:
+	 * Connection: [keep-alive|close]
+	 * --connection is kept alive only if it is requested and response is
+	 * delimited by length or chunks, or if it has no body
+	 * 
+	 * Added headers:
+	 * [name]: [value]
 	 * 
 	 * Other lines have this form:
 	 * Set-Cookie: [name]="[value]"; Domain=[domain]; Path=[path]; maxAge=[maxAge]
@@ -328,47 +776,63 @@ public class RequestContext {
 	 * Last line:
 	 * \r\n
 	 * 
-	 * @throws IOException exception while writing to stream
+	 * @return header bytes
 	 */
-	private void generateHeader() throws IOException {
-		headerGenerated = true;
-		charset = Charset.forName(encoding);
-
-		String firstLine = "HTTP/1.1 " + statusCode + " " + statusText + "\r\n";
-		outputStream.write(codeString(firstLine));
+	private byte[] generateHeader() {
+		StringBuilder header = new StringBuilder(256);
+		header.append("HTTP/1.1 ").append(statusCode).append(' ').append(statusText).append("\r\n");
 
-		String secondLine = "Content-Type: " + mimeType;
+		header.append("Content-Type: ").append(mimeType);
 		if (mimeType.startsWith("text/")) {
-			secondLine += "; charset=" + encoding;
+			header.append("; charset=").append(encoding);
 		}
-		secondLine += "\r\n";
-		outputStream.write(codeString(secondLine));
+		header.append("\r\n");
 
 		if (length != -1) {	//length is not yet set
-			String thirdLine = "Content-Length: " + length + "\r\n";
-			outputStream.write(codeString(thirdLine));
+			header.append("Content-Length: ").append(length).append("\r\n");
+		} else if (hasBody() && chunkingAllowed) {
+			header.append("Transfer-Encoding: chunked\r\n");
+			chunked = true;
+		} else if (hasBody()) {
+			keepAlive = false;	//response can only be delimited by closing
+		}
+
+		header.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+
+		for (Map.Entry<String, String> h : headers.entrySet()) {
+			header.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
 		}
 
 		for (RCCookie c : outputCookies) {
-			String cookieLine = "Set-Cookie: " + c.name + "=\"" + c.value + "\"";
+			header.append("Set-Cookie: ").append(c.name).append("=\"").append(c.value).append('"');
 
 			if (c.domain != null) {
-				cookieLine += "; Domain=" + c.domain;
+				header.append("; Domain=").append(c.domain);
 			}
 
 			if (c.path != null) {
-				cookieLine += "; Path=" + c.path;
+				header.append("; Path=").append(c.path);
 			}
 
 			if (c.maxAge != null) {
-				cookieLine += "; maxAge=" + c.maxAge;
+				header.append("; maxAge=").append(c.maxAge);
 			}
 
-			cookieLine += "\r\n";
-			outputStream.write(codeString(cookieLine));
+			header.append("\r\n");
 		}
 
-		outputStream.write(codeString("\r\n"));
+		header.append("\r\n");
+		return codeString(header.toString());
+	}
+
+	/**
+	 * Checks whether response with current status code can have body. Responses
+	 * with status 1xx, 204 and 304 never have body.
+	 * @return <code>true</code> if response can have body, <code>false</code>
+	 *         otherwise
+	 */
+	private boolean hasBody() {
+		return statusCode >= 200 && statusCode != 204 && statusCode != 304;
 	}
 
 	/**
@@ -390,6 +854,30 @@ public class RequestContext {
 		return codeString(s, StandardCharsets.ISO_8859_1);
 	}
 
+	/**
+	 * Source of session of request. It looks up session of client when it is
+	 * first asked for, creates it if needed, and saves it before header is
+	 * sent.
+	 * @author Dario Vidas
+	 *
+	 */
+	interface SessionSource {
+
+		/**
+		 * Returns session of client.
+		 * @param create whether session is created if client has none
+		 * @return session, or <code>null</code> if client has none and it is not
+		 *         created
+		 */
+		Session getSession(boolean create);
+
+		/**
+		 * Saves session used by request, if any. Called right before header is
+		 * generated, so it can still add session cookie.
+		 */
+		void saveSession();
+	}
+
 	/**
 	 * Inner class defining cookies. Cookies must have name and value. Domain, path
 	 * and max age are optional. Class has single constructor and all fields are
@@ -0,0 +1,250 @@
+package webserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Immutable table of routes, compiled to trie of path segments. Route patterns
+ * start with <code>/</code> and are made of segments separated by
+ * <code>/</code>. Segment <code>*</code> matches any single segment, and
+ * <code>*</code> as the last segment matches rest of path, i.e. one or more
+ * segments. Exact segments take precedence over wildcards, and wildcards over
+ * prefixes. Routes which run workers by name must end with <code>*</code>,
+ * since the rest of path is the name of worker. Paths which do not match any route are files, they are served as
+ * scripts if they have <code>smscr</code> extension and as static files
+ * otherwise. Table is never changed after it is built, it is replaced as a
+ * whole.
+ * @author Dario Vidas
+ *
+ */
+public class RouteTable {
+
+	private static final String WILDCARD = "*";
+	private static final Route SCRIPT = new Route(Kind.SCRIPT, null, null);
+	private static final Route STATIC = new Route(Kind.STATIC, null, null);
+
+	private Node root = new Node();
+	private List<Route> routes = new ArrayList<>();
+
+	/**
+	 * Constructor with 1 argument. Compiles given routes.
+	 * @param routes map of route patterns to routes
+	 * @throws IllegalArgumentException if any pattern is invalid
+	 */
+	public RouteTable(Map<String, Route> routes) {
+		super();
+		for (Entry<String, Route> e : routes.entrySet()) {
+			add(e.getKey(), e.getValue());
+			this.routes.add(e.getValue());
+		}
+	}
+
+	/**
+	 * Adds route under given pattern to trie.
+	 * @param pattern route pattern
+	 * @param route route
+	 */
+	private void add(String pattern, Route route) {
+		if (!pattern.startsWith("/")) {
+			throw new IllegalArgumentException("Route " + pattern + " must start with /.");
+		}
+		String[] segments = pattern.substring(1).split("/", -1);
+		Node node = root;
+		for (int i = 0; i < segments.length; i++) {
+			String segment = segments[i];
+			if (segment.contains(WILDCARD) && !segment.equals(WILDCARD)) {
+				throw new IllegalArgumentException("Wildcard must be whole segment in route " + pattern + ".");
+			}
+
+			if (segment.equals(WILDCARD) && i == segments.length - 1) {
+				node.prefix = route;
+				return;
+			}
+			if (segment.equals(WILDCARD)) {
+				if (node.wildcard == null) {
+					node.wildcard = new Node();
+				}
+				node = node.wildcard;
+			} else {
+				node = node.children.computeIfAbsent(segment, s -> new Node());
+			}
+		}
+		if (route.getKind() == Kind.EXT) {
+			throw new IllegalArgumentException("Route " + pattern + " must end with /* to run workers by name.");
+		}
+		node.route = route;
+	}
+
+	/**
+	 * Finds route for given path. Query must already be removed from path.
+	 * @param path request path, starting with <code>/</code>
+	 * @return match, never <code>null</code>
+	 */
+	public Match match(String path) {
+		Match match = new Match();
+		match.route = find(root, path, 1, match);
+		if (match.route == null) {
+			match.route = isScript(path) ? SCRIPT : STATIC;
+		}
+		return match;
+	}
+
+	/**
+	 * Finds route for segments of path starting at given position. Exact
+	 * segments are tried first, then wildcard and then prefix of current node.
+	 * @param node current node
+	 * @param path request path
+	 * @param position start of current segment
+	 * @param match match whose remainder is set if prefix route is found
+	 * @return route, or <code>null</code> if no route matches
+	 */
+	private static Route find(Node node, String path, int position, Match match) {
+		if (position > path.length()) {		//all segments are matched
+			return node.route;
+		}
+
+		int end = path.indexOf('/', position);
+		if (end == -1) {
+			end = path.length();
+		}
+		Route route = null;
+		Node child = node.children.isEmpty() ? null : node.children.get(path.substring(position, end));
+		if (child != null) {
+			route = find(child, path, end + 1, match);
+		}
+		if (route == null && node.wildcard != null) {
+			route = find(node.wildcard, path, end + 1, match);
+		}
+		if (route == null && node.prefix != null) {
+			route = node.prefix;
+			match.remainder = path.substring(position);
+		}
+		return route;
+	}
+
+	/**
+	 * Checks whether path has script extension.
+	 * @param path path
+	 * @return <code>true</code> if path is script, <code>false</code> otherwise
+	 */
+	private static boolean isScript(String path) {
+		return path.endsWith(".smscr") && path.lastIndexOf('/') < path.length() - ".smscr".length();
+	}
+
+	/**
+	 * Returns handle of worker with given class name if any route of this table
+	 * runs it. Used to keep worker instances when table is rebuilt.
+	 * @param className fully qualified class name of worker
+	 * @return worker handle, or <code>null</code> if there is no such route
+	 */
+	public WorkerHandle getHandle(String className) {
+		for (Route route : routes) {
+			if (route.kind == Kind.WORKER && route.className.equals(className)) {
+				return route.handle;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Kinds of request handlers.
+	 * @author Dario Vidas
+	 *
+	 */
+	public enum Kind {
+		/** Worker configured for route. */
+		WORKER,
+		/** Worker resolved by its simple class name, which is rest of path. */
+		EXT,
+		/** Smart script file from document root. */
+		SCRIPT,
+		/** Static file from document root. */
+		STATIC
+	}
+
+	/**
+	 * Route, i.e. handler to which requests are dispatched.
+	 * @author Dario Vidas
+	 *
+	 */
+	public static class Route {
+
+		private Kind kind;
+		private String className;
+		private WorkerHandle handle;
+
+		/**
+		 * Constructor.
+		 * @param kind handler kind
+		 * @param className class name of worker, only for worker routes
+		 * @param handle worker handle, only for worker routes
+		 */
+		public Route(Kind kind, String className, WorkerHandle handle) {
+			super();
+			if (kind == Kind.WORKER && (className == null || handle == null)) {
+				throw new IllegalArgumentException("Worker route must have worker.");
+			}
+			this.kind = kind;
+			this.className = className;
+			this.handle = handle;
+		}
+
+		/**
+		 * Getter for handler kind.
+		 * @return kind
+		 */
+		public Kind getKind() {
+			return kind;
+		}
+
+		/**
+		 * Getter for worker handle.
+		 * @return worker handle, <code>null</code> if route is not worker route
+		 */
+		public WorkerHandle getHandle() {
+			return handle;
+		}
+	}
+
+	/**
+	 * Result of route lookup.
+	 * @author Dario Vidas
+	 *
+	 */
+	public static class Match {
+
+		private Route route;
+		private String remainder;
+
+		/**
+		 * Getter for matched route.
+		 * @return route
+		 */
+		public Route getRoute() {
+			return route;
+		}
+
+		/**
+		 * Getter for part of path matched by prefix route.
+		 * @return rest of path, <code>null</code> if route is not prefix route
+		 */
+		public String getRemainder() {
+			return remainder;
+		}
+	}
+
+	/**
+	 * Node of trie.
+	 * @author Dario Vidas
+	 *
+	 */
+	private static class Node {
+		private Map<String, Node> children = new HashMap<>();
+		private Node wildcard;
+		private Route route;
+		private Route prefix;
+	}
+}
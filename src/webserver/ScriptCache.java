@@ -0,0 +1,193 @@
+package webserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import custom.scripting.exec.CompiledScript;
+import custom.scripting.exec.SmartScriptCompiler;
+import custom.scripting.exec.SmartScriptOptimizer;
+import custom.scripting.nodes.DocumentNode;
+import custom.scripting.parser.SmartScriptParser;
+
+/**
+ * Cache of parsed smart scripts from document root. Scripts are cached by their
+ * resolved path, and parsed again when their modification time or size
+ * changes. Parsed document is optimized and never changed by engine, so the
+ * same document is executed by all requests. Scripts can be compiled to
+ * bytecode when they are parsed, scripts which cannot be compiled are
+ * interpreted. Script which is not cached is parsed only once, however many
+ * requests ask for it at the same time, other requests wait for its result.
+ * Cache holds at most given number of scripts, least recently used scripts are
+ * evicted first.
+ * @author Dario Vidas
+ *
+ */
+public class ScriptCache {
+
+	private int capacity;
+	private boolean compile;
+	private Map<Path, CachedScript> scripts = new ConcurrentHashMap<>();
+	private AtomicLong clock = new AtomicLong();
+
+	/**
+	 * Constructor with 2 arguments.
+	 * @param capacity maximum number of cached scripts, 0 if scripts are not
+	 *            cached
+	 * @param compile whether scripts are compiled
+	 */
+	public ScriptCache(int capacity, boolean compile) {
+		super();
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Cache capacity cannot be less than zero.");
+		}
+		this.capacity = capacity;
+		this.compile = compile;
+	}
+
+	/**
+	 * Returns script under given path. If script is cached and was not
+	 * modified, cached script is returned, otherwise script is parsed again.
+	 * If path does not denote readable regular file, <code>null</code> is
+	 * returned. Links are not followed.
+	 * @param path resolved path to script
+	 * @return script if it exists, <code>null</code> otherwise
+	 * @throws IOException exception while reading script
+	 */
+	public CompiledScript get(Path path) throws IOException {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		if (!attributes.isRegularFile()) {
+			return null;
+		}
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		long length = attributes.size();
+
+		while (true) {
+			CachedScript script = scripts.get(path);
+			if (script != null && script.lastModified == lastModified && script.length == length) {
+				script.lastUsed = clock.incrementAndGet();
+				return script.await();
+			}
+
+			if (!Files.isReadable(path)) {
+				return null;
+			}
+			CachedScript loaded = new CachedScript(path, lastModified, length);
+			if (capacity == 0) {
+				loaded.script.run();
+				return loaded.await();
+			}
+			if (script == null ? scripts.putIfAbsent(path, loaded) == null : scripts.replace(path, script, loaded)) {
+				evictIfNeeded();
+				loaded.script.run();		//requests which find script in the meantime wait for it
+				try {
+					return loaded.await();
+				} catch (IOException | RuntimeException | Error e) {
+					scripts.remove(path, loaded);		//next request tries again
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Evicts least recently used scripts while there are too many of them.
+	 * Scripts are added rarely, so they are simply searched.
+	 */
+	private void evictIfNeeded() {
+		while (scripts.size() > capacity) {
+			Map.Entry<Path, CachedScript> oldest = null;
+			for (Map.Entry<Path, CachedScript> e : scripts.entrySet()) {
+				if (oldest == null || e.getValue().lastUsed < oldest.getValue().lastUsed) {
+					oldest = e;
+				}
+			}
+			if (oldest == null) {
+				return;
+			}
+			scripts.remove(oldest.getKey(), oldest.getValue());
+		}
+	}
+
+	/**
+	 * Parses and optimizes script from given file, and compiles it if needed.
+	 * @param path path to script
+	 * @return script
+	 * @throws IOException exception while reading script
+	 */
+	private CompiledScript parse(Path path) throws IOException {
+		String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+		DocumentNode document = SmartScriptOptimizer.optimize(new SmartScriptParser(content).getDocumentNode());
+		return compile ? SmartScriptCompiler.compile(document) : SmartScriptCompiler.interpret(document);
+	}
+
+	/**
+	 * Cached script. Script is parsed by request which added it to cache.
+	 * @author Dario Vidas
+	 *
+	 */
+	private class CachedScript {
+
+		private long lastModified;
+		private long length;
+		private volatile long lastUsed = clock.incrementAndGet();
+		private FutureTask<CompiledScript> script;
+
+		/**
+		 * Constructor with 3 arguments.
+		 * @param path path to script
+		 * @param lastModified last modification time in milliseconds
+		 * @param length file length
+		 */
+		CachedScript(Path path, long lastModified, long length) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.script = new FutureTask<>(() -> parse(path));
+		}
+
+		/**
+		 * Waits until script is parsed.
+		 * @return script
+		 * @throws IOException exception while reading script
+		 */
+		CompiledScript await() throws IOException {
+			boolean interrupted = false;
+			try {
+				while (true) {
+					try {
+						return script.get();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw (Error) cause;
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+}
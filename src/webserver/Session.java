@@ -0,0 +1,44 @@
+package webserver;
+
+import java.util.Map;
+
+/**
+ * Session of client, identified by its SID. Session holds persistent
+ * parameters of client. It is view of session kept by {@link SessionStore},
+ * store decides how parameters are kept and when session expires.
+ * @author Dario Vidas
+ *
+ */
+public class Session {
+
+	private final String id;
+	private final Map<String, String> parameters;
+
+	/**
+	 * Constructor with 2 arguments.
+	 * @param id session ID
+	 * @param parameters persistent parameters, must be thread safe
+	 */
+	public Session(String id, Map<String, String> parameters) {
+		super();
+		this.id = id;
+		this.parameters = parameters;
+	}
+
+	/**
+	 * Getter for session ID.
+	 * @return SID, or <code>null</code> if store does not identify sessions
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Getter for persistent parameters. Map can be changed concurrently by
+	 * requests of same client.
+	 * @return persistent parameters
+	 */
+	public Map<String, String> getParameters() {
+		return parameters;
+	}
+}
@@ -0,0 +1,571 @@
+package webserver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Journal of session changes, kept in memory mapped files of given directory.
+ * Changes are appended to mapped journal file by copying them to memory,
+ * threads reserve their place in file without blocking each other. Journal is
+ * written to disk by operating system or when {@link #force()} is called, never
+ * while request waits for it. When journal file is full, new one is started.
+ * <p>
+ * Files belong to generations. Compaction starts new generation: new journal
+ * is started first and snapshot of all sessions is written next to it, then
+ * files of older generations are deleted. Mapping of file is released only
+ * when its buffer is collected, so journal drops its buffers of older
+ * generations before deleting their files, and file which cannot be deleted
+ * yet, since some systems do not delete mapped files, is deleted by later
+ * compaction. On startup, the newest snapshot is
+ * replayed first, followed by journals of its and newer generations. Records
+ * set state instead of changing it, so replaying journal written while
+ * snapshot was taken gives the same state. Every record has checksum, replay
+ * stops at the first record which was not written completely.
+ * @author Dario Vidas
+ *
+ */
+public class SessionJournal {
+
+	private static final String JOURNAL = ".journal";
+	private static final String SNAPSHOT = ".snapshot";
+
+	private static final byte CREATE = 1;
+	private static final byte TOUCH = 2;
+	private static final byte DELETE = 3;
+	private static final byte PUT = 4;
+	private static final byte REMOVE = 5;
+	private static final byte CLEAR = 6;
+
+	/** Size of record header: length, type and SID. */
+	private static final int HEADER = 4 + 1 + 16;
+
+	private Path directory;
+	private int capacity;
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+	private volatile long generation;
+	private MappedByteBuffer buffer;
+	private AtomicInteger position = new AtomicInteger();
+	private NavigableMap<Long, MappedByteBuffer> retired = new TreeMap<>();
+	private long compacted;
+	private volatile boolean failed;
+
+	/**
+	 * Constructor with 2 arguments. Journal is not started until sessions are
+	 * replayed.
+	 * @param directory directory with journal files, created if it does not
+	 *            exist
+	 * @param capacity size of single journal file in bytes
+	 * @throws IOException exception while creating directory
+	 */
+	public SessionJournal(Path directory, int capacity) throws IOException {
+		super();
+		if (capacity < 1024) {
+			throw new IllegalArgumentException("Journal must have at least 1 KB.");
+		}
+		this.directory = Files.createDirectories(directory);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Replays snapshot and journals to given visitor and starts journal of new
+	 * generation. Old files are kept until next compaction.
+	 * @param visitor visitor which rebuilds sessions
+	 * @throws IOException exception while reading files
+	 */
+	public void replay(Visitor visitor) throws IOException {
+		TreeSet<Long> journals = new TreeSet<>();
+		long snapshot = -1;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					if (name.endsWith(JOURNAL)) {
+						journals.add(Long.parseLong(name.substring(0, name.length() - JOURNAL.length())));
+					} else if (name.endsWith(SNAPSHOT)) {
+						snapshot = Math.max(snapshot, Long.parseLong(name.substring(0, name.length() - SNAPSHOT.length())));
+					}
+				} catch (NumberFormatException e) {
+					continue;		//not journal file
+				}
+			}
+		}
+
+		if (snapshot != -1) {
+			replayFile(file(snapshot, SNAPSHOT), visitor);
+		}
+		for (long g : journals.tailSet(Math.max(snapshot, 0L))) {
+			replayFile(file(g, JOURNAL), visitor);
+		}
+
+		generation = Math.max(snapshot, journals.isEmpty() ? 0 : journals.last());
+		compacted = snapshot;
+		start(generation + 1);
+	}
+
+	/**
+	 * Replays records of single file.
+	 * @param file journal or snapshot file
+	 * @param visitor visitor which rebuilds sessions
+	 * @throws IOException exception while reading file
+	 */
+	private static void replayFile(Path file, Visitor visitor) throws IOException {
+		ByteBuffer data;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("File " + file + " is too large.");
+			}
+			data = ByteBuffer.allocate((int) channel.size());		//not mapped, so file can be deleted later
+			while (data.hasRemaining() && channel.read(data) >= 0) {
+				continue;
+			}
+			data.flip();
+		}
+
+		CRC32 crc = new CRC32();
+		while (data.remaining() >= 4) {
+			int length = data.getInt();
+			if (length < HEADER - 4 || length + 4 > data.remaining()) {
+				return;		//end of journal, or record that was not written
+			}
+			ByteBuffer record = data.slice();
+			record.limit(length);
+			data.position(data.position() + length);
+			int checksum = data.getInt();
+
+			crc.reset();
+			crc.update(record.duplicate());
+			if ((int) crc.getValue() != checksum) {
+				return;
+			}
+			replayRecord(record, visitor);
+		}
+	}
+
+	/**
+	 * Passes single record to visitor.
+	 * @param record record without its length and checksum
+	 * @param visitor visitor
+	 */
+	private static void replayRecord(ByteBuffer record, Visitor visitor) {
+		byte type = record.get();
+		long high = record.getLong();
+		long low = record.getLong();
+		switch (type) {
+			case CREATE:
+				visitor.create(high, low, record.getLong());
+				break;
+			case TOUCH:
+				visitor.touch(high, low, record.getLong());
+				break;
+			case DELETE:
+				visitor.delete(high, low);
+				break;
+			case PUT:
+				visitor.put(high, low, readString(record), readString(record));
+				break;
+			case REMOVE:
+				visitor.remove(high, low, readString(record));
+				break;
+			case CLEAR:
+				visitor.clear(high, low);
+				break;
+			default:
+				break;		//unknown record is skipped
+		}
+	}
+
+	/**
+	 * Records that session is created.
+	 * @param high first half of SID
+	 * @param low second half of SID
+	 * @param validUntil time until which session is valid
+	 */
+	public void create(long high, long low, long validUntil) {
+		append(record(CREATE, high, low, 8).putLong(validUntil));
+	}
+
+	/**
+	 * Records that session is valid longer.
+	 * @param high first half of SID
+	 * @param low second half of SID
+	 * @param validUntil time until which session is valid
+	 */
+	public void touch(long high, long low, long validUntil) {
+		append(record(TOUCH, high, low, 8).putLong(validUntil));
+	}
+
+	/**
+	 * Records that session is removed.
+	 * @param high first half of SID
+	 * @param low second half of SID
+	 */
+	public void delete(long high, long low) {
+		append(record(DELETE, high, low, 0));
+	}
+
+	/**
+	 * Records that persistent parameter of session is set.
+	 * @param high first half of SID
+	 * @param low second half of SID
+	 * @param name parameter name
+	 * @param value parameter value
+	 */
+	public void put(long high, long low, String name, String value) {
+		byte[] n = name.getBytes(StandardCharsets.UTF_8);
+		byte[] v = value.getBytes(StandardCharsets.UTF_8);
+		append(record(PUT, high, low, 8 + n.length + v.length).putInt(n.length).put(n).putInt(v.length).put(v));
+	}
+
+	/**
+	 * Records that persistent parameter of session is removed.
+	 * @param high first half of SID
+	 * @param low second half of SID
+	 * @param name parameter name
+	 */
+	public void remove(long high, long low, String name) {
+		byte[] n = name.getBytes(StandardCharsets.UTF_8);
+		append(record(REMOVE, high, low, 4 + n.length).putInt(n.length).put(n));
+	}
+
+	/**
+	 * Records that all persistent parameters of session are removed.
+	 * @param high first half of SID
+	 * @param low second half of SID
+	 */
+	public void clear(long high, long low) {
+		append(record(CLEAR, high, low, 0));
+	}
+
+	/**
+	 * Writes journal to disk. Journals which were filled since last call are
+	 * written too.
+	 */
+	public void force() {
+		List<MappedByteBuffer> buffers;
+		lock.writeLock().lock();
+		try {
+			buffers = new ArrayList<>(retired.values());
+			retired.clear();
+			if (buffer != null) {
+				buffers.add(buffer);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		for (MappedByteBuffer b : buffers) {
+			b.force();
+		}
+	}
+
+	/**
+	 * Checks whether journal should be compacted, i.e. whether current journal
+	 * has no snapshot yet or it is half full.
+	 * @return <code>true</code> if journal should be compacted,
+	 *         <code>false</code> otherwise
+	 */
+	public boolean isCompactionNeeded() {
+		return !failed && (compacted < generation || position.get() > capacity / 2);
+	}
+
+	/**
+	 * Compacts journal. New journal is started, snapshot of sessions is written
+	 * by given writer and older files are deleted. Appending to journal is
+	 * blocked only while new journal is started. Files which cannot be deleted
+	 * yet are left for next compaction.
+	 * @param writer writer which passes every session to given visitor
+	 * @throws IOException exception while writing snapshot
+	 */
+	public void compact(Consumer<Visitor> writer) throws IOException {
+		long snapshot;
+		lock.writeLock().lock();
+		try {
+			snapshot = generation + 1;
+			start(snapshot);
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		Path temporary = directory.resolve(snapshot + SNAPSHOT + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			try (SnapshotWriter out = new SnapshotWriter(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+				writer.accept(out);
+				out.flush();
+				channel.force(false);
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+		Files.move(temporary, file(snapshot, SNAPSHOT), StandardCopyOption.ATOMIC_MOVE);
+
+		lock.writeLock().lock();
+		try {
+			retired.headMap(snapshot).clear();		//snapshot replaces them, mappings are released when collected
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				int dot = name.indexOf('.');
+				try {
+					if (dot > 0 && Long.parseLong(name.substring(0, dot)) < snapshot) {
+						Files.delete(file);
+					}
+				} catch (NumberFormatException e) {
+					continue;
+				} catch (IOException e) {
+					continue;		//still mapped, deleted by next compaction
+				}
+			}
+		}
+		compacted = snapshot;
+	}
+
+	/**
+	 * Starts journal of given generation. Must be called while holding write
+	 * lock.
+	 * @param generation generation
+	 * @throws IOException exception while creating journal
+	 */
+	private void start(long generation) throws IOException {
+		try (FileChannel channel = FileChannel.open(file(generation, JOURNAL), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer next = channel.map(MapMode.READ_WRITE, 0, capacity);	//file is extended with zeros
+			if (buffer != null) {
+				retired.put(this.generation, buffer);
+			}
+			buffer = next;
+			position.set(0);
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * Creates record with given header and room for payload and checksum.
+	 * @param type record type
+	 * @param high first half of SID
+	 * @param low second half of SID
+	 * @param payload size of payload
+	 * @return record, positioned at payload
+	 */
+	private static ByteBuffer record(byte type, long high, long low, int payload) {
+		ByteBuffer record = ByteBuffer.allocate(HEADER + payload + 4);
+		return record.putInt(HEADER - 4 + payload).put(type).putLong(high).putLong(low);
+	}
+
+	/**
+	 * Appends record to journal. Record gets its checksum and is copied to
+	 * reserved place of mapped file. If journal is full, new journal is started.
+	 * If journal cannot be started, journaling stops.
+	 * @param record record with filled payload
+	 */
+	private void append(ByteBuffer record) {
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 4, record.position() - 4);
+		record.putInt((int) crc.getValue());
+		record.flip();
+		int length = record.remaining();
+
+		while (!failed) {
+			long full;
+			lock.readLock().lock();
+			try {
+				int start = position.getAndAdd(length);
+				if (start <= capacity - length) {
+					ByteBuffer target = buffer.duplicate();
+					target.position(start);
+					target.put(record);
+					return;
+				}
+				full = generation;
+			} finally {
+				lock.readLock().unlock();
+			}
+
+			lock.writeLock().lock();
+			try {
+				if (generation == full) {
+					if (length > capacity) {
+						throw new IllegalArgumentException("Session change does not fit in journal.");
+					}
+					start(generation + 1);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();	//Log server exception, sessions are no longer journaled
+				failed = true;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns file of given generation.
+	 * @param generation generation
+	 * @param suffix file suffix
+	 * @return path of file
+	 */
+	private Path file(long generation, String suffix) {
+		return directory.resolve(generation + suffix);
+	}
+
+	/**
+	 * Reads string written as its length followed by UTF-8 bytes.
+	 * @param record record positioned at string
+	 * @return string
+	 */
+	private static String readString(ByteBuffer record) {
+		byte[] bytes = new byte[record.getInt()];
+		record.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Receiver of session changes, either when they are replayed or when
+	 * snapshot is written.
+	 * @author Dario Vidas
+	 *
+	 */
+	public interface Visitor {
+
+		/**
+		 * Session is created.
+		 * @param high first half of SID
+		 * @param low second half of SID
+		 * @param validUntil time until which session is valid
+		 */
+		void create(long high, long low, long validUntil);
+
+		/**
+		 * Session is valid longer.
+		 * @param high first half of SID
+		 * @param low second half of SID
+		 * @param validUntil time until which session is valid
+		 */
+		void touch(long high, long low, long validUntil);
+
+		/**
+		 * Session is removed.
+		 * @param high first half of SID
+		 * @param low second half of SID
+		 */
+		void delete(long high, long low);
+
+		/**
+		 * Persistent parameter is set.
+		 * @param high first half of SID
+		 * @param low second half of SID
+		 * @param name parameter name
+		 * @param value parameter value
+		 */
+		void put(long high, long low, String name, String value);
+
+		/**
+		 * Persistent parameter is removed.
+		 * @param high first half of SID
+		 * @param low second half of SID
+		 * @param name parameter name
+		 */
+		void remove(long high, long low, String name);
+
+		/**
+		 * All persistent parameters are removed.
+		 * @param high first half of SID
+		 * @param low second half of SID
+		 */
+		void clear(long high, long low);
+	}
+
+	/**
+	 * Visitor which writes snapshot records to stream. Only sessions and their
+	 * parameters are written, so only creation and parameter setting are
+	 * supported.
+	 * @author Dario Vidas
+	 *
+	 */
+	private static class SnapshotWriter extends DataOutputStream implements Visitor {
+
+		private CRC32 crc = new CRC32();
+
+		/**
+		 * Constructor with 1 argument.
+		 * @param out snapshot stream
+		 */
+		SnapshotWriter(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void create(long high, long low, long validUntil) {
+			write(record(CREATE, high, low, 8).putLong(validUntil));
+		}
+
+		@Override
+		public void put(long high, long low, String name, String value) {
+			byte[] n = name.getBytes(StandardCharsets.UTF_8);
+			byte[] v = value.getBytes(StandardCharsets.UTF_8);
+			write(record(PUT, high, low, 8 + n.length + v.length).putInt(n.length).put(n).putInt(v.length).put(v));
+		}
+
+		@Override
+		public void touch(long high, long low, long validUntil) {
+			throw new UnsupportedOperationException("Snapshot only has created sessions.");
+		}
+
+		@Override
+		public void delete(long high, long low) {
+			throw new UnsupportedOperationException("Snapshot only has created sessions.");
+		}
+
+		@Override
+		public void remove(long high, long low, String name) {
+			throw new UnsupportedOperationException("Snapshot only has created sessions.");
+		}
+
+		@Override
+		public void clear(long high, long low) {
+			throw new UnsupportedOperationException("Snapshot only has created sessions.");
+		}
+
+		/**
+		 * Writes record with its checksum.
+		 * @param record record with filled payload
+		 */
+		private void write(ByteBuffer record) {
+			crc.reset();
+			crc.update(record.array(), 4, record.position() - 4);
+			record.putInt((int) crc.getValue());
+			try {
+				write(record.array(), 0, record.position());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package webserver;
+
+/**
+ * Store of client sessions. Store is used concurrently by all client workers,
+ * so every method must be thread safe. Client identifies its session with
+ * value of session cookie, which is chosen by store. Looking up session also
+ * extends its validity.
+ * <p>
+ * Store used by server is chosen with <code>session.store</code> property of
+ * server configuration. Besides built in stores, it can be fully qualified
+ * name of class which implements this interface and has public constructor
+ * which takes server properties.
+ * @author Dario Vidas
+ *
+ */
+public interface SessionStore {
+
+	/**
+	 * Finds valid session with given cookie value and extends its validity.
+	 * Expired session is removed and is not returned.
+	 * @param cookie value of session cookie sent by client
+	 * @return session, or <code>null</code> if there is no valid session
+	 */
+	Session find(String cookie);
+
+	/**
+	 * Creates new session.
+	 * @return new session
+	 */
+	Session create();
+
+	/**
+	 * Saves session used by request. It is called right before response header
+	 * is sent, so changes of session can still be sent to client in cookie.
+	 * Store which cannot keep changes made after this call must reject them
+	 * with <code>UnsupportedOperationException</code>, so they are not
+	 * silently lost.
+	 * @param session session used by request
+	 * @param created whether session was created by request
+	 * @return value of session cookie which must be sent to client, or
+	 *         <code>null</code> if client already has it
+	 */
+	String save(Session session, boolean created);
+
+	/**
+	 * Removes all expired sessions.
+	 * @return number of removed sessions
+	 */
+	int removeExpired();
+
+	/**
+	 * Returns number of sessions in store, including expired sessions which are
+	 * not yet removed. Stores which keep sessions at clients return 0.
+	 * @return number of sessions
+	 */
+	int size();
+
+	/**
+	 * Returns number of sessions which were removed before they expired,
+	 * because store had no room for them. Stores which never evict sessions
+	 * return 0.
+	 * @return total number of evicted sessions
+	 */
+	default long getTotalEvicted() {
+		return 0;
+	}
+}
@@ -0,0 +1,578 @@
+package webserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import webserver.ConcurrentSessionStore.Key;
+
+/**
+ * Session store kept in memory mapped file, which can be shared by several
+ * server processes on the same host. Sessions are kept outside of heap, in
+ * table of fixed size slots with open addressing. Session is put in the first
+ * free slot after slot given by hash of its SID, lookup stops at the first
+ * slot which was never used. Slots are only searched within small window, and
+ * if window has no free slot, session which expires first is evicted, so table
+ * never overflows.
+ * <p>
+ * Every slot starts with control word, which holds state of slot, lock bit and
+ * process id of lock owner. Slots are claimed and locked with compare and swap
+ * of control word, which is atomic between processes too, so processes do not
+ * need any other coordination. Lock is held only while slot is copied. Lock
+ * held by the same owner for longer than {@value #LOCK_TIMEOUT} nanoseconds is
+ * taken over only if owner process no longer exists, so slow or paused owner
+ * keeps its lock. Processes must therefore see process ids of each other.
+ * Thread which dies while holding lock leaves slot locked while its process
+ * lives, and then store must be reset by deleting its file while no process
+ * uses it. Parameters are encoded in slot, every access
+ * reads them under lock, so all processes see the same parameters. Parameters
+ * which do not fit in slot are rejected.
+ * <p>
+ * Layout of file is stored in its header. All processes must use the same
+ * number of slots and slot size, file with different layout is rejected.
+ * @author Dario Vidas
+ *
+ */
+public class SharedSessionStore implements SessionStore {
+
+	private static final int MAGIC = 0x534D5353;
+	private static final int VERSION = 1;
+	/** Size of file header, holds magic, version, layout and session count. */
+	private static final int HEADER = 64;
+	private static final int COUNT = 16;
+
+	private static final long EMPTY = 0;
+	private static final long USED = 1;
+	private static final long DELETED = 2;
+	private static final long LOCKED = 4;
+	/** Bits of control word which hold state. */
+	private static final long STATE = 3;
+	/** Lock bit with process id of this process in the upper half. */
+	private static final long OWNER = (ProcessHandle.current().pid() & 0xFFFFFFFFL) << 32 | LOCKED;
+
+	private static final int HIGH = 8;
+	private static final int LOW = 16;
+	private static final int VALID_UNTIL = 24;
+	private static final int LENGTH = 32;
+	private static final int DATA = 36;
+
+	/** Number of slots searched for session. */
+	private static final int MAX_PROBES = 32;
+	/** Time in nanoseconds after which lock of dead process is taken over. */
+	private static final long LOCK_TIMEOUT = 1_000_000_000L;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private MappedByteBuffer buffer;
+	private int mask;
+	private int slotSize;
+	private long timeout;
+	private SecureRandom[] randoms;
+	private AtomicLong totalEvicted = new AtomicLong();
+
+	/**
+	 * Constructor with 4 arguments. File is created if it does not exist.
+	 * @param file file shared by processes
+	 * @param timeout time in seconds after which unused session expires
+	 * @param slots number of slots, rounded up to power of two
+	 * @param slotSize size of slot in bytes, multiple of 8
+	 * @throws IOException exception while mapping file, or if file has
+	 *             different layout
+	 */
+	public SharedSessionStore(Path file, int timeout, int slots, int slotSize) throws IOException {
+		super();
+		if (timeout < 1 || slots < 1) {
+			throw new IllegalArgumentException("Session timeout and number of slots must be positive.");
+		}
+		if (slotSize < 64 || slotSize % 8 != 0) {
+			throw new IllegalArgumentException("Slot size must be multiple of 8 and at least 64 bytes.");
+		}
+		int count = slots == 1 ? 1 : Integer.highestOneBit(slots - 1) << 1;
+		long size = HEADER + (long) count * slotSize;
+		if (count <= 0 || size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Session file cannot be larger than 2 GB.");
+		}
+		this.mask = count - 1;
+		this.slotSize = slotSize;
+		this.timeout = timeout * 1000L;
+		this.randoms = new SecureRandom[Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 2];
+		for (int i = 0; i < randoms.length; i++) {
+			randoms[i] = new SecureRandom();
+		}
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			channel.lock();		//released when channel is closed
+			buffer = channel.map(MapMode.READ_WRITE, 0, size);		//new file is extended with zeros
+			buffer.order(ByteOrder.nativeOrder());
+			if (buffer.getInt(0) == 0) {
+				buffer.putInt(4, VERSION);
+				buffer.putInt(8, count);
+				buffer.putInt(12, slotSize);
+				buffer.putInt(0, MAGIC);
+				buffer.force();
+			} else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+					|| buffer.getInt(8) != count || buffer.getInt(12) != slotSize) {
+				throw new IOException("Session file " + file + " has different layout.");
+			}
+		}
+	}
+
+	@Override
+	public Session find(String cookie) {
+		Key key = Key.parse(cookie);
+		if (key == null) {
+			return null;
+		}
+		int slot = lock(key);
+		if (slot < 0) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		if (buffer.getLong(slot + VALID_UNTIL) < now) {
+			unlock(slot, DELETED);
+			LONGS.getAndAdd(buffer, COUNT, -1L);
+			return null;
+		}
+		buffer.putLong(slot + VALID_UNTIL, now + timeout);
+		unlock(slot, USED);
+		return new Session(cookie, new SharedParameters(key, slot));
+	}
+
+	@Override
+	public Session create() {
+		while (true) {
+			Key key = Key.generate(randoms[ThreadLocalRandom.current().nextInt(randoms.length)]);
+			int slot = insert(key);
+			if (slot >= 0) {
+				unlock(slot, USED);
+				return new Session(key.toString(), new SharedParameters(key, slot));
+			}
+		}
+	}
+
+	/**
+	 * Session is kept in store, so only new session must be sent to client.
+	 * Cookie value is SID.
+	 */
+	@Override
+	public String save(Session session, boolean created) {
+		return created ? session.getId() : null;
+	}
+
+	/**
+	 * Removes expired sessions of all processes. Any process can do it, so it
+	 * does not matter whether several processes do it at the same time.
+	 */
+	@Override
+	public int removeExpired() {
+		long now = System.currentTimeMillis();
+		int removed = 0;
+		for (int index = 0; index <= mask; index++) {
+			int slot = offset(index);
+			if (control(slot) != USED || buffer.getLong(slot + VALID_UNTIL) >= now) {
+				continue;
+			}
+			long state = lockSlot(slot);
+			if (state == USED && buffer.getLong(slot + VALID_UNTIL) < now) {
+				state = DELETED;
+				removed++;
+			}
+			unlock(slot, state);
+		}
+		LONGS.getAndAdd(buffer, COUNT, (long) -removed);
+		return removed;
+	}
+
+	/**
+	 * Returns number of sessions of all processes, including expired sessions
+	 * which are not yet removed.
+	 */
+	@Override
+	public int size() {
+		return (int) (long) LONGS.getVolatile(buffer, COUNT);
+	}
+
+	/**
+	 * Getter for number of sessions this process evicted because their slots
+	 * were needed.
+	 * @return number of evicted sessions
+	 */
+	@Override
+	public long getTotalEvicted() {
+		return totalEvicted.get();
+	}
+
+	/**
+	 * Finds slot of session with given SID and locks it.
+	 * @param key packed SID
+	 * @return offset of locked slot, or -1 if there is no such session
+	 */
+	private int lock(Key key) {
+		int index = index(key);
+		for (int i = 0; i < MAX_PROBES; i++) {
+			int slot = offset(index + i & mask);
+			long control = control(slot);
+			if (control == EMPTY) {
+				return -1;		//slot was never used, so session cannot be after it
+			}
+			if (lock(slot, key) >= 0) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Locks given slot if it holds session with given SID.
+	 * @param slot offset of slot
+	 * @param key packed SID
+	 * @return offset of locked slot, or -1 if slot holds other session
+	 */
+	private int lock(int slot, Key key) {
+		if ((control(slot) & STATE) != USED || !holds(slot, key)) {
+			return -1;
+		}
+		long state = lockSlot(slot);
+		if (state == USED && holds(slot, key)) {
+			return slot;
+		}
+		unlock(slot, state);		//slot was reused in the meantime
+		return -1;
+	}
+
+	/**
+	 * Puts new session with given SID in free slot, or in slot of session which
+	 * expires first if there is no free slot. Slot is left locked.
+	 * @param key packed SID
+	 * @return offset of locked slot, or -1 if there is already session with
+	 *         given SID
+	 */
+	private int insert(Key key) {
+		int index = index(key);
+		while (true) {
+			int victim = -1;
+			long oldest = Long.MAX_VALUE;
+			for (int i = 0; i < MAX_PROBES; i++) {
+				int slot = offset(index + i & mask);
+				long control = control(slot);
+				if ((control & STATE) == USED) {
+					if (holds(slot, key)) {
+						return -1;
+					}
+					long validUntil = buffer.getLong(slot + VALID_UNTIL);
+					if (validUntil < oldest) {
+						oldest = validUntil;
+						victim = slot;
+					}
+				} else if ((control & LOCKED) == 0 && LONGS.compareAndSet(buffer, slot, control, control | OWNER)) {
+					LONGS.getAndAdd(buffer, COUNT, 1L);
+					fill(slot, key);
+					return slot;
+				}
+			}
+
+			if (victim >= 0) {
+				long state = lockSlot(victim);
+				if (state == USED) {
+					totalEvicted.incrementAndGet();
+				} else {
+					LONGS.getAndAdd(buffer, COUNT, 1L);		//slot was freed in the meantime
+				}
+				fill(victim, key);
+				return victim;
+			}
+			Thread.onSpinWait();		//all slots are being claimed, try again
+		}
+	}
+
+	/**
+	 * Writes new session with given SID to locked slot.
+	 * @param slot offset of slot
+	 * @param key packed SID
+	 */
+	private void fill(int slot, Key key) {
+		buffer.putLong(slot + HIGH, key.high);
+		buffer.putLong(slot + LOW, key.low);
+		buffer.putLong(slot + VALID_UNTIL, System.currentTimeMillis() + timeout);
+		buffer.putInt(slot + LENGTH, 0);
+	}
+
+	/**
+	 * Locks given slot, waiting while other thread or process holds it. Lock
+	 * is taken over if it is held for too long by process which no longer
+	 * exists. Data of slot can then be damaged, which is found when it is
+	 * decoded.
+	 * @param slot offset of slot
+	 * @return state of slot
+	 */
+	private long lockSlot(int slot) {
+		long held = 0;
+		long since = 0;
+		while (true) {
+			long control = control(slot);
+			if ((control & LOCKED) == 0) {
+				if (LONGS.compareAndSet(buffer, slot, control, control | OWNER)) {
+					return control;
+				}
+			} else if (control != held) {
+				held = control;		//lock changed hands, wait for new owner from start
+				since = System.nanoTime();
+			} else if (System.nanoTime() - since > LOCK_TIMEOUT && !isAlive(control >>> 32)) {
+				if (LONGS.compareAndSet(buffer, slot, control, (control & STATE) | OWNER)) {
+					return control & STATE;
+				}
+			}
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Checks whether process with given id exists.
+	 * @param pid process id
+	 * @return <code>true</code> if process exists, <code>false</code>
+	 *         otherwise
+	 */
+	private static boolean isAlive(long pid) {
+		return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+	}
+
+	/**
+	 * Unlocks given slot and sets its state.
+	 * @param slot offset of slot
+	 * @param state new state
+	 */
+	private void unlock(int slot, long state) {
+		LONGS.setRelease(buffer, slot, state);
+	}
+
+	/**
+	 * Reads control word of given slot.
+	 * @param slot offset of slot
+	 * @return control word
+	 */
+	private long control(int slot) {
+		return (long) LONGS.getAcquire(buffer, slot);
+	}
+
+	/**
+	 * Checks whether given slot holds session with given SID.
+	 * @param slot offset of slot
+	 * @param key packed SID
+	 * @return <code>true</code> if slot holds session, <code>false</code>
+	 *         otherwise
+	 */
+	private boolean holds(int slot, Key key) {
+		return buffer.getLong(slot + HIGH) == key.high && buffer.getLong(slot + LOW) == key.low;
+	}
+
+	/**
+	 * Returns index of the first slot searched for given SID.
+	 * @param key packed SID
+	 * @return slot index
+	 */
+	private int index(Key key) {
+		long hash = (key.high ^ key.low) * 0x9E3779B97F4A7C15L;
+		return (int) (hash >>> 32) & mask;
+	}
+
+	/**
+	 * Returns offset of slot with given index.
+	 * @param index slot index
+	 * @return offset of slot in file
+	 */
+	private int offset(int index) {
+		return HEADER + index * slotSize;
+	}
+
+	/**
+	 * Persistent parameters of session kept in slot. Every access locks slot
+	 * and decodes parameters, so map reflects changes of all processes. If
+	 * session is evicted or expires while it is used, it is put in new slot
+	 * when its parameters change. Views of map are snapshots.
+	 * @author Dario Vidas
+	 *
+	 */
+	private class SharedParameters extends AbstractMap<String, String> {
+
+		private Key key;
+		private volatile int slot;
+
+		/**
+		 * Constructor with 2 arguments.
+		 * @param key packed SID
+		 * @param slot offset of slot which holds session
+		 */
+		SharedParameters(Key key, int slot) {
+			super();
+			this.key = key;
+			this.slot = slot;
+		}
+
+		@Override
+		public String get(Object name) {
+			return read().get(name);
+		}
+
+		@Override
+		public boolean containsKey(Object name) {
+			return read().containsKey(name);
+		}
+
+		@Override
+		public int size() {
+			return read().size();
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			return Collections.unmodifiableMap(read()).entrySet();
+		}
+
+		@Override
+		public String put(String name, String value) {
+			Objects.requireNonNull(name);
+			Objects.requireNonNull(value);
+			return change(map -> map.put(name, value));
+		}
+
+		@Override
+		public String remove(Object name) {
+			return change(map -> map.remove(name));
+		}
+
+		@Override
+		public void clear() {
+			change(map -> {
+				map.clear();
+				return null;
+			});
+		}
+
+		/**
+		 * Reads parameters from slot.
+		 * @return parameters, empty if session no longer exists
+		 */
+		private Map<String, String> read() {
+			int locked = locate(false);
+			if (locked < 0) {
+				return new HashMap<>();
+			}
+			try {
+				return decode(locked);
+			} finally {
+				unlock(locked, USED);
+			}
+		}
+
+		/**
+		 * Changes parameters in slot.
+		 * @param change change of parameters
+		 * @return result of change
+		 * @throws IllegalArgumentException if parameters do not fit in slot
+		 */
+		private String change(Function<Map<String, String>, String> change) {
+			int locked = locate(true);
+			try {
+				Map<String, String> map = decode(locked);
+				String result = change.apply(map);
+				byte[] data = encode(map);
+				if (data.length > slotSize - DATA) {
+					throw new IllegalArgumentException("Session parameters do not fit in slot.");
+				}
+				buffer.put(locked + DATA, data);
+				buffer.putInt(locked + LENGTH, data.length);
+				return result;
+			} finally {
+				unlock(locked, USED);
+			}
+		}
+
+		/**
+		 * Finds and locks slot of session, which was possibly moved.
+		 * @param create whether session is put in new slot if it no longer
+		 *            exists
+		 * @return offset of locked slot, or -1 if session no longer exists
+		 */
+		private int locate(boolean create) {
+			int locked = lock(slot, key);
+			if (locked < 0) {
+				locked = lock(key);
+			}
+			while (locked < 0 && create) {
+				locked = insert(key);
+				if (locked < 0) {
+					locked = lock(key);		//other thread put it back
+				}
+			}
+			if (locked >= 0) {
+				slot = locked;
+			}
+			return locked;
+		}
+
+		/**
+		 * Decodes parameters of locked slot.
+		 * @param slot offset of slot
+		 * @return parameters, empty if slot is damaged
+		 */
+		private Map<String, String> decode(int slot) {
+			Map<String, String> map = new HashMap<>();
+			int length = buffer.getInt(slot + LENGTH);
+			if (length <= 0 || length > slotSize - DATA) {
+				return map;
+			}
+			byte[] data = new byte[length];
+			buffer.get(slot + DATA, data);
+			try {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+				for (int n = in.readUnsignedShort(); n > 0; n--) {
+					map.put(in.readUTF(), in.readUTF());
+				}
+			} catch (IOException e) {
+				map.clear();		//written by process which died
+			}
+			return map;
+		}
+
+		/**
+		 * Encodes parameters.
+		 * @param map parameters
+		 * @return encoded parameters
+		 */
+		private byte[] encode(Map<String, String> map) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				out.writeShort(map.size());
+				for (Map.Entry<String, String> e : map.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeUTF(e.getValue());
+				}
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Session parameters do not fit in slot.", e);
+			}
+			return bytes.toByteArray();
+		}
+	}
+}
@@ -1,37 +1,42 @@
 package webserver;
 
-import custom.scripting.exec.SmartScriptEngine;
-import custom.scripting.parser.SmartScriptParser;
+import custom.scripting.exec.CompiledScript;
 import webserver.RequestContext.RCCookie;
+import webserver.Concurrency.Mode;
+import webserver.RouteTable.Kind;
+import webserver.RouteTable.Match;
+import webserver.RouteTable.Route;
+import webserver.StaticFileCache.CachedFile;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PushbackInputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Random;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Queue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.Properties;
 
 /**
@@ -41,19 +46,33 @@ import java.util.Properties;
  */
 public class SmartHttpServer {
 
-	private static final int BUFFER_SIZE = 1024;
+	private static final int MAX_HEADER_SIZE = 8192;
+	private static final int MAX_HEADERS = 100;
+	private static final int SWEEP_INTERVAL = 1000;
 
 	private String address;
 	private int port;
 	private int workerThreads;
+	private String executorType;
 	private int sessionTimeout;
+	private int sessionSweepInterval;
+	private int keepAliveTimeout;
+	private int maxKeepAliveRequests;
+	private int responseBufferSize;
 	private Map<String, String> mimeTypes = new HashMap<>();
-	private Map<String, IWebWorker> workersMap = new HashMap<>();
+	private Map<String, String> cacheControls = new HashMap<>();
+	private volatile RouteTable routes;
+	private Path workersConfig;
+	private long workersModified;
+	private WorkerResolver extWorkers;
 	private ServerThread serverThread;
 	private ExecutorService threadPool;
 	private Path documentRoot;
-	private Map<String, SessionMapEntry> sessions = new HashMap<>();
-	private Random sessionRandom = new Random();
+	private StaticFileCache staticFiles;
+	private ScriptCache scripts;
+	private SessionStore sessions;
+	private volatile int lastExpiredSessions;
+	private volatile long totalExpiredSessions;
 
 	/**
 	 * Public constructor with one argument. Constructor reads from config file and
@@ -68,16 +87,83 @@ public class SmartHttpServer {
 			this.address = properties.getProperty("server.address");
 			this.port = Integer.parseInt(properties.getProperty("server.port"));
 			this.workerThreads = Integer.parseInt(properties.getProperty("server.workerThreads"));
+			this.executorType = properties.getProperty("server.executor", "fixed").trim();
 			this.sessionTimeout = Integer.parseInt(properties.getProperty("session.timeout"));
-			this.documentRoot = Paths.get(properties.getProperty("server.documentRoot"));
+			this.sessionSweepInterval = Integer.parseInt(properties.getProperty("session.sweepInterval", "300"));
+			this.sessions = createSessionStore(properties);
+			this.keepAliveTimeout = Integer.parseInt(properties.getProperty("server.keepAliveTimeout", "15"));
+			this.maxKeepAliveRequests = Integer.parseInt(properties.getProperty("server.maxKeepAliveRequests", "100"));
+			this.responseBufferSize = Integer.parseInt(properties.getProperty("server.responseBuffer",
+					Integer.toString(RequestContext.DEFAULT_BUFFER_SIZE)));
+			this.documentRoot = Paths.get(properties.getProperty("server.documentRoot")).toAbsolutePath().normalize();
+			this.staticFiles = new StaticFileCache(documentRoot.toRealPath(),
+					Long.parseLong(properties.getProperty("server.staticCache.size", "67108864")),
+					Integer.parseInt(properties.getProperty("server.staticCache.smallFile", "65536")),
+					Long.parseLong(properties.getProperty("server.staticCache.mappedFile", "8388608")));
+			this.scripts = new ScriptCache(Integer.parseInt(properties.getProperty("server.scriptCache.size", "256")),
+					Boolean.parseBoolean(properties.getProperty("server.scriptCache.compile", "false").trim()));
 
 			loadMimeTypes(properties.getProperty("server.mimeConfig"));
-			loadWorkers(properties.getProperty("server.workers"));
+			loadCacheControls(properties.getProperty("server.cacheConfig"));
+			this.workersConfig = Paths.get(properties.getProperty("server.workers"));
+			this.workersModified = Files.getLastModifiedTime(workersConfig).toMillis();
+			loadWorkers();
+			this.extWorkers = new WorkerResolver(getClass().getClassLoader(),
+					properties.getProperty("server.extWorkers", "webserver.workers").trim());
 		} catch (IOException e) {
 			e.printStackTrace();	//Log server exception
 		}
 	}
 
+	/**
+	 * Helper method that creates session store chosen by "session.store"
+	 * property. Store "memory" keeps sessions in memory of server, optionally
+	 * journaled. Store "shared" keeps them in memory mapped file shared with
+	 * other servers on the same host. Store "cookie" keeps them in signed cookies. Any other value is
+	 * class name of store, which must have public constructor that takes server
+	 * properties.
+	 * @param properties server properties
+	 * @return session store
+	 * @throws IOException exception while restoring sessions
+	 */
+	private SessionStore createSessionStore(Properties properties) throws IOException {
+		String type = properties.getProperty("session.store", "memory").trim();
+		switch (type) {
+			case "memory":
+				long memory = Long.parseLong(properties.getProperty("session.maxMemory", "0")) * 1024 * 1024;
+				ConcurrentSessionStore store = new ConcurrentSessionStore(sessionTimeout, sessionSweepInterval, memory);
+				String journal = properties.getProperty("session.journal", "").trim();
+				if (!journal.isEmpty()) {
+					int journalSize = Integer.parseInt(properties.getProperty("session.journalSize", "64")) * 1024 * 1024;
+					store.restore(new SessionJournal(Paths.get(journal), journalSize));
+				}
+				return store;
+
+			case "shared":
+				String file = properties.getProperty("session.sharedFile", "").trim();
+				if (file.isEmpty()) {
+					throw new IllegalArgumentException("Shared session store needs session.sharedFile.");
+				}
+				return new SharedSessionStore(Paths.get(file), sessionTimeout,
+						Integer.parseInt(properties.getProperty("session.sharedSlots", "65536")),
+						Integer.parseInt(properties.getProperty("session.slotSize", "512")));
+
+			case "cookie":
+				return new CookieSessionStore(sessionTimeout,
+						properties.getProperty("session.secret"),
+						Boolean.parseBoolean(properties.getProperty("session.encrypt", "false").trim()),
+						Integer.parseInt(properties.getProperty("session.cookieSize", "4000")));
+
+			default:
+				try {
+					return Class.forName(type).asSubclass(SessionStore.class)
+							.getConstructor(Properties.class).newInstance(properties);
+				} catch (ReflectiveOperationException | ClassCastException e) {
+					throw new IllegalArgumentException("Cannot create session store " + type + ".", e);
+				}
+		}
+	}
+
 	/**
 	 * Helper method that loads all mime types from given config file name into map.
 	 * @param configFileName config file name
@@ -95,29 +181,115 @@ public class SmartHttpServer {
 	}
 
 	/**
-	 * Helper method that loads all <code>IWebWorker</code> objects to workers map.
-	 * @param configFileName config file name
+	 * Helper method that loads Cache-Control header values for static files by
+	 * their extension. Config file is optional, if it is not given, no
+	 * Cache-Control headers are sent.
+	 * @param configFileName config file name, can be <code>null</code>
 	 * @throws IOException exception while loading properties
 	 */
-	private void loadWorkers(String configFileName) throws IOException {
+	private void loadCacheControls(String configFileName) throws IOException {
+		if (configFileName == null) {
+			return;
+		}
 		try (FileInputStream configFile = new FileInputStream(configFileName)) {
 			Properties properties = new Properties();
 			properties.load(configFile);
 
+			for (Entry<Object, Object> e : properties.entrySet()) {
+				cacheControls.put(e.getKey().toString(), e.getValue().toString().trim());
+			}
+		}
+	}
+
+	/**
+	 * Helper method that builds route table from workers config file and replaces
+	 * current table with it. Keys of config file are route patterns, values are
+	 * either fully qualified class names of workers or one of handler kinds
+	 * "ext", "script" and "static". Route "/ext/*" is "ext" unless configured
+	 * otherwise, "ext" routes must end with <code>*</code>. Workers are run according to their declared concurrency mode,
+	 * workers that do not declare it are serialized. Workers that were already
+	 * loaded by previous table are kept. If any route is invalid, current table
+	 * is kept.
+	 * @throws IOException exception while loading properties
+	 */
+	private void loadWorkers() throws IOException {
+		try (FileInputStream configFile = new FileInputStream(workersConfig.toFile())) {
+			Properties properties = new Properties();
+			properties.load(configFile);
+
+			RouteTable old = routes;
+			Map<String, Route> table = new HashMap<>();
+			table.put("/ext/*", new Route(Kind.EXT, null, null));
+
 			for (Entry<Object, Object> e : properties.entrySet()) {
 				String path = e.getKey().toString();
-				String fqcn = e.getValue().toString();
+				String fqcn = e.getValue().toString().trim();
+
+				switch (fqcn) {
+					case "ext":
+						table.put(path, new Route(Kind.EXT, null, null));
+						continue;
+					case "script":
+						table.put(path, new Route(Kind.SCRIPT, null, null));
+						continue;
+					case "static":
+						table.put(path, new Route(Kind.STATIC, null, null));
+						continue;
+					default:
+						break;
+				}
 
 				try {
-					Class<?> referenceToClass = this.getClass().getClassLoader().loadClass(fqcn);
-					Object newObject = referenceToClass.newInstance();
-					IWebWorker iww = (IWebWorker) newObject;
+					WorkerHandle handle = old == null ? null : old.getHandle(fqcn);
+					if (handle == null) {
+						Class<?> referenceToClass = this.getClass().getClassLoader().loadClass(fqcn);
+						handle = new WorkerHandle(referenceToClass, Mode.SERIALIZED);
+					}
 
-					workersMap.put(path, iww);
-				} catch (ClassNotFoundException | InstantiationException | IllegalAccessException e1) {
+					table.put(path, new Route(Kind.WORKER, fqcn, handle));
+				} catch (ReflectiveOperationException | IllegalArgumentException e1) {
 					e1.printStackTrace();		//Log server exception
 				}
 			}
+
+			try {
+				routes = new RouteTable(table);
+			} catch (IllegalArgumentException e1) {
+				e1.printStackTrace();		//Log server exception
+				if (old == null) {
+					table.keySet().retainAll(Collections.singleton("/ext/*"));
+					routes = new RouteTable(table);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reloads routes if workers config file was modified since it was last
+	 * loaded. New route table is built on thread pool and then replaces old one,
+	 * so every request sees either old or new table. This method is invoked by
+	 * server thread.
+	 */
+	private void checkWorkersConfig() {
+		long modified;
+		try {
+			modified = Files.getLastModifiedTime(workersConfig).toMillis();
+		} catch (IOException e) {
+			return;		//config is being replaced, check again later
+		}
+		if (modified == workersModified) {
+			return;
+		}
+		workersModified = modified;
+
+		synchronized (this) {
+			threadPool.submit(() -> {
+				try {
+					loadWorkers();
+				} catch (IOException e) {
+					e.printStackTrace();	//Log server exception
+				}
+			});
 		}
 	}
 
@@ -127,12 +299,35 @@ public class SmartHttpServer {
 	protected synchronized void start() {
 		if (serverThread == null) {
 			serverThread = new ServerThread();
-			threadPool = Executors.newFixedThreadPool(workerThreads);
+			threadPool = createExecutor();
 			serverThread.start();
 			new SessionCollector().start();
 		}
 	}
 
+	/**
+	 * Creates executor which runs client workers. Executor type is either
+	 * "fixed", pool with <code>workerThreads</code> threads, or "virtual", where
+	 * each client worker runs on its own virtual thread. If virtual threads are
+	 * not supported by running JVM, fixed pool is used.
+	 * @return new executor
+	 */
+	private ExecutorService createExecutor() {
+		if (executorType.equals("virtual")) {
+			try {
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				new UnsupportedOperationException("Virtual threads are not supported, using fixed thread pool.", e)
+					.printStackTrace();	//Log server exception
+			}
+		} else if (!executorType.equals("fixed")) {
+			new IllegalArgumentException("Unknown server.executor " + executorType + ", using fixed thread pool.")
+				.printStackTrace();	//Log server exception
+		}
+		return Executors.newFixedThreadPool(workerThreads);
+	}
+
 	/**
 	 * Stops server thread.
 	 */
@@ -149,23 +344,66 @@ public class SmartHttpServer {
 		}
 	}
 
+	/**
+	 * Getter for number of sessions in session store.
+	 * @return number of sessions
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * Getter for number of sessions removed by last sweep of session collector.
+	 * @return number of sessions expired in last sweep
+	 */
+	public int getLastExpiredSessions() {
+		return lastExpiredSessions;
+	}
+
+	/**
+	 * Getter for number of sessions removed by all sweeps of session collector.
+	 * @return total number of expired sessions
+	 */
+	public long getTotalExpiredSessions() {
+		return totalExpiredSessions;
+	}
+
+	/**
+	 * Getter for number of sessions evicted by session store because its limit
+	 * was exceeded.
+	 * @return total number of evicted sessions
+	 */
+	public long getEvictedSessions() {
+		return sessions.getTotalEvicted();
+	}
+
 	/**
 	 * Server thread class. This class extends <code>Thread</code> and acts as main
-	 * thread for running server.
+	 * thread for running server. Thread runs non-blocking selector loop which
+	 * accepts clients and reads their requests without holding a worker thread.
+	 * Only fully read requests are handed to the thread pool. Kept alive
+	 * connections are returned to this thread while they wait for next request.
 	 * @author Dario Vidas
 	 * 
 	 */
 	protected class ServerThread extends Thread {
 
-		private ServerSocket serverSocket;
+		private ServerSocketChannel serverChannel;
+		private Selector selector;
+		private Queue<Connection> returned = new ConcurrentLinkedQueue<>();
+		private long lastSweep = System.currentTimeMillis();
 
 		/**
-		 * Public constructor for initializing server socket.
+		 * Public constructor for initializing server channel and selector.
 		 */
 		public ServerThread() {
 			super();
 			try {
-				this.serverSocket = new ServerSocket(port);
+				this.selector = Selector.open();
+				this.serverChannel = ServerSocketChannel.open();
+				serverChannel.bind(new InetSocketAddress(port));
+				serverChannel.configureBlocking(false);
+				serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 			} catch (IOException e) {
 				e.printStackTrace();	//Log server exception
 			}
@@ -174,343 +412,608 @@ public class SmartHttpServer {
 		@Override
 		public void interrupt() {
 			super.interrupt();
-			try {
-				serverSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();	//Log server exception
-			}
+			selector.wakeup();
 		}
 
 		@Override
 		public void run() {
+			List<Connection> ready = new ArrayList<>();
 			try {
 				while (!isInterrupted()) {
-					Socket client = serverSocket.accept();
-					ClientWorker cw = new ClientWorker(client);
-					synchronized (SmartHttpServer.this) {
-						threadPool.submit(cw);
+					selector.select(SWEEP_INTERVAL);
+					registerReturned();
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+						} else if (key.isReadable()) {
+							Connection connection = (Connection) key.attachment();
+							if (read(connection)) {
+								key.cancel();
+								ready.add(connection);
+							}
+						}
 					}
+
+					if (!ready.isEmpty()) {
+						dispatch(ready);
+						ready.clear();
+					}
+					sweep();
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				if (!isInterrupted()) {
+					e.printStackTrace();	//Log server exceptions
+				}
+			} finally {
+				close();
+			}
+		}
+
+		/**
+		 * Returns kept alive connection to this thread. Connection will wait in
+		 * selector for its next request. Connection must be in non-blocking mode.
+		 * @param connection client connection
+		 */
+		public void resume(Connection connection) {
+			returned.add(connection);
+			selector.wakeup();
+		}
+
+		/**
+		 * Registers all connections returned by workers for reading.
+		 */
+		private void registerReturned() {
+			Connection connection;
+			while ((connection = returned.poll()) != null) {
+				try {
+					connection.lastActive = System.currentTimeMillis();
+					connection.channel.register(selector, SelectionKey.OP_READ, connection);
+				} catch (IOException e) {
+					connection.close();
 				}
+			}
+		}
+
+		/**
+		 * Closes connections that have been idle for longer than keep alive
+		 * timeout and reloads routes if their config changed. Sweep is done at
+		 * most once per sweep interval.
+		 */
+		private void sweep() {
+			long now = System.currentTimeMillis();
+			if (now - lastSweep < SWEEP_INTERVAL) {
+				return;
+			}
+			lastSweep = now;
+			checkWorkersConfig();
+
+			for (SelectionKey key : selector.keys()) {
+				if (!(key.attachment() instanceof Connection)) {
+					continue;
+				}
+				Connection connection = (Connection) key.attachment();
+				if (now - connection.lastActive > keepAliveTimeout * 1000L) {
+					key.cancel();
+					connection.close();
+				}
+			}
+		}
+
+		/**
+		 * Accepts all pending clients and registers them for reading.
+		 * @throws IOException exception while accepting
+		 */
+		private void accept() throws IOException {
+			SocketChannel channel;
+			while ((channel = serverChannel.accept()) != null) {
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+			}
+		}
+
+		/**
+		 * Reads available bytes from client. Closes client if it closed its side
+		 * of connection or if read failed.
+		 * @param connection client connection
+		 * @return <code>true</code> if whole request header is read,
+		 *         <code>false</code> otherwise
+		 */
+		private boolean read(Connection connection) {
+			try {
+				if (connection.channel.read(connection.buffer) == -1) {
+					connection.close();
+					return false;
+				}
+				connection.lastActive = System.currentTimeMillis();
+				return connection.isRequestRead();
 			} catch (IOException e) {
-				if (isInterrupted()) {	//Server was shut down
-					return;
+				connection.close();
+				return false;
+			}
+		}
+
+		/**
+		 * Switches read connections back to blocking mode and submits them to the
+		 * thread pool. Channel can be put in blocking mode only after its key is
+		 * deregistered, which happens on the next selection operation.
+		 * @param ready connections with whole request read
+		 * @throws IOException exception while selecting
+		 */
+		private void dispatch(List<Connection> ready) throws IOException {
+			selector.selectNow();
+			for (Connection connection : ready) {
+				try {
+					connection.channel.configureBlocking(true);
+				} catch (IOException e) {
+					connection.close();
+					continue;
+				}
+				synchronized (SmartHttpServer.this) {
+					threadPool.submit(new ClientWorker(connection));
 				}
-				e.printStackTrace();	//Log server exceptions
+			}
+		}
+
+		/**
+		 * Closes server channel, selector and all clients waiting in selector.
+		 */
+		private void close() {
+			try {
+				for (SelectionKey key : selector.keys()) {
+					if (key.attachment() instanceof Connection) {
+						((Connection) key.attachment()).close();
+					}
+				}
+				selector.close();
+				serverChannel.close();
+			} catch (IOException | ClosedSelectorException e) {
+				e.printStackTrace();	//Log server exception
 			}
 		}
 	}
 
 	/**
-	 * Private class that acts as a thread worker for server clients.
+	 * Private class holding state of single client connection while its request
+	 * is being read by server thread.
 	 * @author Dario Vidas
 	 * 
 	 */
-	private class ClientWorker implements Runnable {
+	private static class Connection {
 
-		private static final int SID_LENGTH = 20;
-
-		private Socket csocket;
-		private PushbackInputStream istream;
-		private OutputStream ostream;
-		private String version;
-		private String method;
-		private Map<String, String> params = new HashMap<>();
-		private Map<String, String> permParams = null;
-		private List<RCCookie> outputCookies = new ArrayList<>();
-		private String sid;
+		private SocketChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+		private HttpRequestParser parser = new HttpRequestParser(MAX_HEADER_SIZE, MAX_HEADERS);
+		private int requests = 0;
+		private long lastActive = System.currentTimeMillis();
 
 		/**
-		 * Worker constructor.
-		 * @param csocket client socket
+		 * Constructor.
+		 * @param channel client channel
 		 */
-		public ClientWorker(Socket csocket) {
+		public Connection(SocketChannel channel) {
 			super();
-			this.csocket = csocket;
+			this.channel = channel;
 		}
 
-		@Override
-		public void run() {
-			try {
-				//open streams
-				istream = new PushbackInputStream(csocket.getInputStream());
-				ostream = csocket.getOutputStream();
-
-				//load header
-				List<String> request = null;
-				request = readRequest();
+		/**
+		 * Checks whether request header has been read. Header is read when parser
+		 * finds empty line, when parser rejects request or when buffer is full.
+		 * Bytes that are already parsed are not parsed again.
+		 * @return <code>true</code> if header is read, <code>false</code> otherwise
+		 */
+		public boolean isRequestRead() {
+			return parser.parse(buffer) || !buffer.hasRemaining();
+		}
 
-				//check header
-				if (request.size() < 1) {
-					returnResponseStatus(400);
-					return;
-				}
+		/**
+		 * Checks whether whole valid header was parsed. If not, request is
+		 * malformed or buffer was filled before the end of header.
+		 * @return <code>true</code> if header was parsed, <code>false</code>
+		 *         otherwise
+		 */
+		public boolean hasHeader() {
+			return parser.isComplete();
+		}
 
-				//check first line
-				String firstLine = request.get(0);
-				String[] argsFirst = firstLine.split(" ");
+		/**
+		 * Prepares connection for next request. Bytes that were read after current
+		 * header belong to next request and are moved to the beginning of buffer.
+		 */
+		public void next() {
+			buffer.flip();
+			buffer.position(parser.getHeaderEnd());
+			buffer.compact();
+			parser.reset();
+			requests++;
+		}
 
-				method = argsFirst[0];
-				version = argsFirst[2];
-				if (!method.equals("GET") || !((version.equals("HTTP/1.0")) || version.equals("HTTP/1.1"))) {
-					//returnResponseStatus(400);
-					return;
-				}
-				String relativePath = argsFirst[1];
-
-				//split second argument to path and parameters
-				String path = relativePath;
-				String paramString = null;
-				if (relativePath.indexOf('?') > -1) {
-					path = relativePath.substring(0, relativePath.indexOf('?'));
-					paramString = relativePath.substring(relativePath.indexOf('?') + 1);
-				}
+		/**
+		 * Closes client channel.
+		 */
+		public void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();	//Log server exception
+			}
+		}
+	}
 
-				synchronized (sessions) {
-					checkSession(request);
-				}
+	/**
+	 * Private class that acts as a thread worker for server clients.
+	 * @author Dario Vidas
+	 * 
+	 */
+	private class ClientWorker implements Runnable, RequestContext.SessionSource {
 
-				parseParameters(paramString);
+		private Connection connection;
+		private OutputStream ostream;
+		private String version;
+		private String method;
+		private boolean keepAliveRequested;
+		private Map<String, String> params;
+		private List<RCCookie> outputCookies;
+		private Session session;
+		private boolean sessionChecked;
+		private boolean sessionCreated;
+		private RequestContext context;
 
-				//check for forbidden path
-				Path requestedPath = documentRoot.resolve(path.substring(1));
-				if (!requestedPath.startsWith(documentRoot)) {
-					returnResponseStatus(403);
-					return;
-				}
+		/**
+		 * Worker constructor.
+		 * @param connection client connection with read request
+		 */
+		public ClientWorker(Connection connection) {
+			super();
+			this.connection = connection;
+		}
 
-				//run /ext/ worker
-				if (path.startsWith("/ext/")) {		//sync not needed
-					String className = path.substring("/ext/".length());
-					runWebWorker(className);
-					return;
-				}
+		@Override
+		public void run() {
+			serveRequests(false, null);
+		}
 
-				//run worker from workers map
-				IWebWorker iww = workersMap.get(path);
-				if (iww != null) {
-					synchronized (iww) {	//sync not really needed for current workers
-						iww.processRequest(new RequestContext(ostream, params, permParams, outputCookies));
+		/**
+		 * Serves requests of connection while next request is already read. If
+		 * asynchronous worker is run, serving stops without blocking thread and
+		 * continues on thread pool when worker completes. Otherwise connection is
+		 * returned to server thread or closed when there are no more requests.
+		 * @param completed whether request of completed asynchronous worker is
+		 *            finished first
+		 * @param error exception with which asynchronous worker completed,
+		 *            <code>null</code> if it completed normally
+		 */
+		private void serveRequests(boolean completed, Throwable error) {
+			boolean keepAlive = false;
+			CompletionStage<?> pending = null;
+			try {
+				if (completed) {
+					if (error != null) {
+						failRequest(error);
 					}
-					return;
-				}
-
-				//check is file valid
-				if (!Files.exists(requestedPath, LinkOption.NOFOLLOW_LINKS)
-						|| !Files.isRegularFile(requestedPath, LinkOption.NOFOLLOW_LINKS)
-						|| !Files.isReadable(requestedPath)) {
-					returnResponseStatus(404);
-					return;
-				}
-
-				//creating extension and running smartscript or setting mime type
-				String extension = "";
-				if (path.lastIndexOf('.') > -1 && path.lastIndexOf('.') != path.length() - 1) {
-					extension = path.substring(path.lastIndexOf('.') + 1);
+				} else {
+					//open stream
+					ostream = connection.channel.socket().getOutputStream();
+					pending = serve();
 				}
 
-				if (extension.equals("smscr")) {
-					runSMSCR(requestedPath);
-					return;
+				while (pending == null) {
+					keepAlive = finishRequest();
+					if (!keepAlive || !connection.isRequestRead()) {
+						break;		//next request is not yet read, wait for it in server thread
+					}
+					pending = serve();
 				}
 
-				String mimeType = mimeTypes.get(extension);
-				if (mimeType == null) {
-					mimeType = "application/octet-stream";
+				if (pending != null) {
+					pending.whenComplete((result, e) -> continueRequests(e));
 				}
-
-				RequestContext rc = new RequestContext(ostream, params, permParams, outputCookies);
-				rc.setMimeType(mimeType);
-				rc.setStatusCode(200);
-
-				writeToRC(rc, requestedPath);		//and at last simply writing file to browser
-
 			} catch (SocketException e) {
+				keepAlive = false;
 				e.printStackTrace();	//Used for debugging
 			} catch (IOException e) {
+				keepAlive = false;
 				e.printStackTrace();	//Log server exception
 			} finally {		//Log all exceptions
-				try {
-					csocket.close();	//automatically closes streams
-				} catch (IOException e) {
-					e.printStackTrace();
+				if (pending == null && (!keepAlive || !resume())) {
+					connection.close();		//automatically closes streams
 				}
 			}
 		}
 
 		/**
-		 * Helper method that fills list with requests. Each request line is a new
-		 * list element. All lines are terminated by either <code>\n</code> or
-		 * <code>\r</code>.
-		 * @return new list
-		 * @throws IOException exception while reading stream
+		 * Submits rest of serving to thread pool once asynchronous worker
+		 * completes. Connection is closed if server is stopped in the meantime.
+		 * @param error exception with which worker completed, <code>null</code>
+		 *            if it completed normally
 		 */
-		private List<String> readRequest() throws IOException {
-			BufferedReader reader = new BufferedReader(new InputStreamReader(istream, StandardCharsets.UTF_8));
-
-			List<String> temp = new ArrayList<>();
-			while (true) {
-				String line = reader.readLine();
-				if (line == null || line.trim().isEmpty()) {
-					break;
+		private void continueRequests(Throwable error) {
+			try {
+				synchronized (SmartHttpServer.this) {
+					threadPool.submit(() -> serveRequests(true, error));
 				}
-				temp.add(line);
+			} catch (RejectedExecutionException e) {
+				connection.close();
 			}
-			return temp;
 		}
 
 		/**
-		 * Method checks session for entries. Method tries to find candidate for sid.
-		 * If not found, new entry will be created. If found and is still valid,
-		 * entry will be updated, if it is not valid, new entry will be created.
-		 * Also entry map will be assigned to permanent parameters map. This method
-		 * will always be under synchronized block.
-		 * @param request list of header lines
-		 * 
-		 * @see #findCandidate(String)
-		 * @see #createNew()
-		 * @see #getDomain(List)
+		 * Sends buffered response of current request and prepares connection for
+		 * next request.
+		 * @return <code>true</code> if connection is kept alive, <code>false</code>
+		 *         otherwise
+		 * @throws IOException exception while sending response
 		 */
-		private void checkSession(List<String> request) {
-			String sidCandidate = null;
-			for (String s : request) {
-				if (s.startsWith("Cookie:")) {
-					sidCandidate = findCandidate(s);
-
-					if (sidCandidate != null) {		//candidate found
-						break;
-					}
-				}
+		private boolean finishRequest() throws IOException {
+			if (context != null) {
+				context.finish();	//sends buffered response, empty one if nothing was written
 			}
 
-			if (sidCandidate == null || !sessions.containsKey(sidCandidate)) {
-				createNew(getDomain(request));
-			} else {
-				sid = sidCandidate;
-				SessionMapEntry entry = sessions.get(sid);
+			boolean keepAlive = context != null && context.isKeepAlive() && connection.hasHeader();
+			if (keepAlive) {
+				connection.next();
+			}
+			return keepAlive;
+		}
 
-				if (new Date().after(new Date(entry.validUntil))) {		//expired
-					createNew(getDomain(request));
-				} else {
-					entry.validUntil = new Date().getTime() + sessionTimeout * 1000;
-				}
+		/**
+		 * Replaces response of failed asynchronous worker with status 500. If part
+		 * of response is already sent, it cannot be replaced and connection is
+		 * closed.
+		 * @param error exception with which worker completed
+		 * @throws IOException if response cannot be replaced
+		 */
+		private void failRequest(Throwable error) throws IOException {
+			error.printStackTrace();	//Log server exception
+			if (context != null && context.isHeaderSent()) {
+				throw new IOException("Asynchronous worker failed after response was sent.", error);
 			}
+			returnResponseStatus(500);
+		}
 
-			SessionMapEntry validEntry = sessions.get(sid);
-			permParams = validEntry.map;
+		/**
+		 * Returns connection to server thread to wait for next request.
+		 * @return <code>true</code> if connection was returned, <code>false</code>
+		 *         otherwise
+		 */
+		private boolean resume() {
+			ServerThread thread = serverThread;
+			if (thread == null) {
+				return false;
+			}
+			try {
+				connection.channel.configureBlocking(false);
+			} catch (IOException e) {
+				return false;
+			}
+			thread.resume(connection);
+			return true;
 		}
 
 		/**
-		 * Method parses request cookie line. Tries to find cookie with name "sid".
-		 * If it finds that cookie, returns sid value, otherwise returns
-		 * <code>null</code>.
-		 * @param cookieLine cookie line to parse
-		 * @return sid value if it exists, <code>null</code> otehrwise
+		 * Serves single request which was read from connection. Every request
+		 * starts with fresh request state.
+		 * @return stage of asynchronous worker which still writes response, or
+		 *         <code>null</code> if response is written
+		 * @throws IOException exception while writing response
 		 */
-		private String findCandidate(String cookieLine) {
-			String cookieParams = cookieLine.substring("Cookie:".length()).trim();
-			String[] splitted = cookieParams.split(";");
+		private CompletionStage<?> serve() throws IOException {
+			version = null;
+			method = null;
+			keepAliveRequested = false;
+			params = new HashMap<>();
+			outputCookies = new ArrayList<>();
+			session = null;
+			sessionChecked = false;
+			sessionCreated = false;
+			context = null;
+
+			//check header, it is already parsed by server thread
+			HttpRequestParser request = connection.parser;
+			if (!request.isComplete()) {
+				version = "HTTP/1.1";
+				returnResponseStatus(400);
+				return null;
+			}
 
-			for (String s : splitted) {
-				if (s.startsWith("sid")) {
-					return s.substring(s.indexOf('"') + 1, s.lastIndexOf('"'));
+			method = request.getMethod();
+			version = request.getVersion();
+			if (!method.equals("GET") || !((version.equals("HTTP/1.0")) || version.equals("HTTP/1.1"))) {
+				//returnResponseStatus(400);
+				return null;
+			}
+			String relativePath = request.getTarget();
+			keepAliveRequested = isKeepAliveRequested(request);
+
+			//split second argument to path and parameters
+			String path = relativePath;
+			String paramString = null;
+			if (relativePath.indexOf('?') > -1) {
+				path = relativePath.substring(0, relativePath.indexOf('?'));
+				paramString = relativePath.substring(relativePath.indexOf('?') + 1);
+			}
+
+
+			parseParameters(paramString);
+
+			//single lookup in route table decides how request is handled
+			Match match = routes.match(path);
+			Route route = match.getRoute();
+			if (route.getKind() == Kind.WORKER) {	//locking is done by handle if worker needs it
+				return route.getHandle().process(createContext());
+			}
+			if (route.getKind() == Kind.EXT) {
+				return runWebWorker(match.getRemainder());
+			}
+
+			//check for forbidden path, ".." segments must not lead out of document root
+			Path requestedPath = documentRoot.resolve(path.substring(1)).normalize();
+			if (!requestedPath.startsWith(documentRoot)) {
+				returnResponseStatus(403);
+				return null;
+			}
+
+			//creating extension and running smartscript or setting mime type
+			String extension = "";
+			if (path.lastIndexOf('.') > -1 && path.lastIndexOf('.') != path.length() - 1) {
+				extension = path.substring(path.lastIndexOf('.') + 1);
+			}
+
+			if (route.getKind() == Kind.SCRIPT) {
+				CompiledScript script = scripts.get(requestedPath);		//checks is file valid
+				if (script == null) {
+					returnResponseStatus(404);
+					return null;
 				}
+				script.execute(createContext());
+				return null;
+			}
+
+			String mimeType = mimeTypes.get(extension);
+			if (mimeType == null) {
+				mimeType = "application/octet-stream";
+			}
+
+			CachedFile file = staticFiles.get(requestedPath, mimeType, cacheControls.get(extension));	//checks is file valid
+			if (file == null) {
+				returnResponseStatus(404);
+				return null;
 			}
+
+			RequestContext rc = createContext();
+			rc.setMimeType(file.getMimeType());
+			if (file.isNotModified(request.getHeader("If-None-Match"), request.getHeader("If-Modified-Since"))) {
+				file.writeNotModified(rc);
+				return null;
+			}
+			String range = request.getHeader("Range");
+			if (range != null && file.isRangeValid(request.getHeader("If-Range")) && file.writeRanges(rc, range)) {
+				return null;
+			}
+			rc.setStatusCode(200);
+
+			file.writeTo(rc, outputCookies.isEmpty());		//and at last simply writing file to browser
 			return null;
 		}
 
 		/**
-		 * Helper method for creating new session entry. Method generates new sid,
-		 * creates new session entry, updates sessions map and adds cookie. This
-		 * method is always invoked inside snychronized block.
-		 * @param domain cookie domain
+		 * Method returns session of client. It is invoked by request context when
+		 * session is first needed, so requests which do not use persistent
+		 * parameters do no session work. Method tries to find candidate for sid.
+		 * If found and it is still valid, session is extended. Otherwise new
+		 * session is created, if asked for. Its cookie is added when session is
+		 * saved.
+		 * @param create whether session is created if client has none
+		 * @return session, or <code>null</code> if client has none and it is not
+		 *         created
 		 * 
-		 * @see #generateSID()
+		 * @see #findCandidate(String)
+		 * @see #saveSession()
 		 */
-		private void createNew(String domain) {
-			sid = generateSID();
-			while (sessions.containsKey(sid)) {		//if generated sid exists
-				sid = generateSID();
-			}
+		@Override
+		public Session getSession(boolean create) {
+			HttpRequestParser request = connection.parser;
+			if (!sessionChecked) {
+				sessionChecked = true;
+				String sidCandidate = null;
+				for (String s : request.getHeaders("Cookie")) {
+					sidCandidate = findCandidate(s);
 
-			SessionMapEntry entry = new SessionMapEntry();
-			entry.sid = sid;
-			entry.validUntil = new Date().getTime() + sessionTimeout * 1000;
-			entry.map = new ConcurrentHashMap<>();
+					if (sidCandidate != null) {		//candidate found
+						break;
+					}
+				}
+				if (sidCandidate != null) {
+					session = sessions.find(sidCandidate);		//extends valid session
+				}
+			}
 
-			sessions.put(entry.sid, entry);
-			if (domain == null) {
-				domain = address;
+			if (session == null && create) {		//missing or expired
+				session = sessions.create();
+				sessionCreated = true;
 			}
-			outputCookies.add(new RCCookie("sid", entry.sid, null, domain, "/"));
+			return session;
 		}
 
 		/**
-		 * Helper method for extracting domain from header. If there is no line that
-		 * starts with "Host:", method will return <code>null</code>.
-		 * @param request header request
-		 * @return domain if found, <code>null</code> otherwise
+		 * Method saves session used by request in session store, and adds session
+		 * cookie if store asks for it. It is invoked by request context right
+		 * before header is sent.
 		 */
-		private String getDomain(List<String> request) {
-			for (String s : request) {
-				if (s.startsWith("Host:")) {
-					return s.substring("Host:".length(), s.lastIndexOf(':')).trim();
-				}
+		@Override
+		public void saveSession() {
+			if (session == null) {
+				return;
+			}
+			String cookie = sessions.save(session, sessionCreated);
+			if (cookie != null) {
+				String domain = getDomain(connection.parser);
+				outputCookies.add(new RCCookie("sid", cookie, null, domain == null ? address : domain, "/"));
 			}
-			return null;
 		}
 
 		/**
-		 * Method generates random SID. Generated SID consists of 20 uppercase
-		 * letters by default.
-		 * @return random SID
+		 * Method parses value of request cookie header. Tries to find cookie with
+		 * name "sid". If it finds that cookie, returns sid value, otherwise returns
+		 * <code>null</code>.
+		 * @param cookieParams cookie header value to parse
+		 * @return sid value if it exists, <code>null</code> otehrwise
 		 */
-		private String generateSID() {
-			StringBuilder builder = new StringBuilder();
-			final int span = 26;
-			final int indexA = 65;
+		private String findCandidate(String cookieParams) {
+			String[] splitted = cookieParams.split(";");
 
-			for (int i = 0; i < SID_LENGTH; i++) {
-				builder.append((char) (sessionRandom.nextInt(span) + indexA));
+			for (String s : splitted) {
+				s = s.trim();
+				if (s.startsWith("sid=")) {
+					String value = s.substring("sid=".length());
+					if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+						value = value.substring(1, value.length() - 1);
+					}
+					return value;
+				}
 			}
-			return builder.toString();
+			return null;
 		}
 
 		/**
-		 * Method runs web worker under given name. This method does not need
-		 * synchronization because every time it is invoked, method constructs its
-		 * own instance of web worker.
-		 * @param className class name of worker
-		 * @throws IOException error while writing
+		 * Helper method for extracting domain from header. Domain is value of Host
+		 * header without port. If there is no Host header, method will return
+		 * <code>null</code>.
+		 * @param request parsed request header
+		 * @return domain if found, <code>null</code> otherwise
 		 */
-		private void runWebWorker(String className) throws IOException {
-			try {
-				Class<?> clazz = this.getClass().getClassLoader().loadClass(
-						"hr.fer.zemris.java.webserver.workers." + className);
-				Object newObject = clazz.newInstance();
-				IWebWorker iww = (IWebWorker) newObject;
-
-				iww.processRequest(new RequestContext(ostream, params, permParams, outputCookies));
-			} catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
-				//e.printStackTrace();	//Log server exception
-				returnResponseStatus(404);
+		private String getDomain(HttpRequestParser request) {
+			String host = request.getHeader("Host");
+			if (host == null) {
+				return null;
 			}
+			int colon = host.lastIndexOf(':');
+			return colon > host.lastIndexOf(']') ? host.substring(0, colon) : host;	//colons of IPv6 address are kept
 		}
 
 		/**
-		 * Helper method for running smart scripts.
-		 * @param scriptName script name (path to script)
-		 * @throws IOException exception while reading script
+		 * Method runs web worker under given name. Worker is run according to its
+		 * concurrency mode, by default every invocation constructs its own
+		 * instance of web worker.
+		 * @param className simple class name of worker
+		 * @return stage of asynchronous worker, <code>null</code> if response is
+		 *         written
+		 * @throws IOException error while writing
 		 */
-		private void runSMSCR(Path scriptName) throws IOException {
-			try (BufferedReader reader = Files.newBufferedReader(scriptName, StandardCharsets.UTF_8)) {
-				String content = readFromStream(reader);
-
-				new SmartScriptEngine(new SmartScriptParser(content).getDocumentNode(), new RequestContext(
-						ostream,
-						params,
-						permParams,
-						outputCookies)).execute();
+		private CompletionStage<?> runWebWorker(String className) throws IOException {
+			WorkerHandle handle = extWorkers.resolve(className);
+			if (handle == null) {
+				returnResponseStatus(404);
+				return null;
 			}
+			return handle.process(createContext());
 		}
 
 		/**
@@ -539,14 +1042,51 @@ public class SmartHttpServer {
 		 * @throws IOException exception while writing to stream
 		 */
 		private void returnResponseStatus(int statusCode) throws IOException {
-			RequestContext rc = new RequestContext(ostream, params, permParams, outputCookies);
+			RequestContext rc = createContext();
 			rc.setStatusCode(statusCode);
 			rc.setStatusText(getStatusMessage(statusCode));
 			rc.setMimeType("text/html");
 
-			rc.write("<html><body>");
-			rc.write("<h1>" + getStatusMessage(statusCode) + "</h1>");
-			rc.write("</body></html>");
+			byte[] body = ("<html><body><h1>" + getStatusMessage(statusCode) + "</h1></body></html>")
+					.getBytes(StandardCharsets.UTF_8);
+			rc.setLength(body.length);
+			rc.write(body);
+		}
+
+		/**
+		 * Creates request context for current request. Created context is
+		 * remembered so that response can be completed after it is processed.
+		 * @return new request context
+		 */
+		private RequestContext createContext() {
+			context = new RequestContext(ostream, params, null, outputCookies);
+			context.setSessionSource(this);
+			context.setOutputChannel(connection.channel);
+			context.setBufferSize(responseBufferSize);
+			context.setChunkingAllowed(version.equals("HTTP/1.1"));
+			context.setKeepAlive(keepAliveRequested && connection.requests + 1 < maxKeepAliveRequests);
+			return context;
+		}
+
+		/**
+		 * Checks whether client wants connection to be kept alive. HTTP/1.1
+		 * connections are kept alive unless client sends "Connection: close",
+		 * HTTP/1.0 connections are kept alive only if client sends
+		 * "Connection: keep-alive".
+		 * @param request parsed request header
+		 * @return <code>true</code> if connection should be kept alive,
+		 *         <code>false</code> otherwise
+		 */
+		private boolean isKeepAliveRequested(HttpRequestParser request) {
+			for (String value : request.getHeaders("Connection")) {
+				if (value.equalsIgnoreCase("close")) {
+					return false;
+				}
+				if (value.equalsIgnoreCase("keep-alive")) {
+					return true;
+				}
+			}
+			return version.equals("HTTP/1.1");
 		}
 
 		/**
@@ -562,33 +1102,23 @@ public class SmartHttpServer {
 					return version + " 403 Forbidden";
 				case 404:
 					return version + " 404 File Not Found";
+				case 500:
+					return version + " 500 Internal Server Error";
 			}
 			return null;
 		}
 
 	}
 
-	/**
-	 * Private class for session entries.
-	 * @author Dario Vidas
-	 * 
-	 */
-	private static class SessionMapEntry {
-		String sid;
-		long validUntil;
-		Map<String, String> map;
-	}
-
 	/**
 	 * Class defines session collector thread. This thread is daemonic garbage
-	 * collector thread that cleans sessions map every 5 minutes.
+	 * collector thread that removes expired sessions from session store every
+	 * sweep interval.
 	 * @author Dario Vidas
 	 * 
 	 */
 	private class SessionCollector extends Thread {
 
-		private static final int SLEEP_TIME = 300;
-
 		/**
 		 * Sets thread to daemon.
 		 */
@@ -601,17 +1131,12 @@ public class SmartHttpServer {
 		public void run() {
 			while (true) {
 
-				synchronized (sessions) {
-					Set<Entry<String, SessionMapEntry>> temp = new HashSet<>(sessions.entrySet());
-					for (Entry<String, SessionMapEntry> e : temp) {
-						if (new Date().after(new Date(e.getValue().validUntil))) {
-							sessions.remove(e.getKey());
-						}
-					}
-				}
+				int expired = sessions.removeExpired();		//does not block requests
+				lastExpiredSessions = expired;
+				totalExpiredSessions += expired;		//written only by this thread
 
 				try {
-					sleep(SLEEP_TIME * 1000);	//Sleep 5 minutes
+					sleep(sessionSweepInterval * 1000L);
 				} catch (InterruptedException e1) {
 					return;
 				}
@@ -619,54 +1144,6 @@ public class SmartHttpServer {
 		}
 	}
 
-	/**
-	 * Reads content from stream and creates string.
-	 * @param reader stream reader
-	 * @return string
-	 * @throws IOException exception while reading
-	 */
-	private static String readFromStream(BufferedReader reader) throws IOException {
-		StringBuilder builder = new StringBuilder();
-		char[] buff = new char[BUFFER_SIZE];
-		int charsRead;
-
-		while (true) {
-			charsRead = reader.read(buff);
-			if (charsRead == -1) {
-				break;
-			}
-			builder.append(buff, 0, charsRead);
-		}
-
-		return builder.toString();
-	}
-
-	/**
-	 * Helper method for writing file content to request context.
-	 * @param rc request context
-	 * @param path path to file
-	 * @throws IOException exception while opening or writing
-	 */
-	private static void writeToRC(RequestContext rc, Path path) throws IOException {
-		try (BufferedInputStream inStream = new BufferedInputStream(Files.newInputStream(path));
-				ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-
-			byte[] buffer = new byte[BUFFER_SIZE];
-			int length;
-
-			while (true) {
-				length = inStream.read(buffer);
-				if (length == -1) {
-					break;
-				}
-				bos.write(buffer, 0, length);
-			}
-
-			rc.setLength(bos.size());
-			rc.write(bos.toByteArray());
-		}
-	}
-
 	/**
 	 * Main program for starting server.
 	 * @param args no arguments
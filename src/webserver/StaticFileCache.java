@@ -0,0 +1,579 @@
+package webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of static files served from document root. Files are cached by their
+ * real path, links are followed only if they lead to file inside document
+ * root. Small files are kept on heap together with their prepared
+ * response headers, medium files are memory mapped, and large files are not
+ * cached at all, they are transfered from disk on every request. Cache holds at
+ * most given number of bytes, least recently used files are evicted first.
+ * Cached file is reloaded when its modification time or size changes. Every
+ * file carries validators, entity tag and last modification time, so that
+ * conditional requests can be answered without body, and can be sent partially
+ * when client asks for byte ranges.
+ * @author Dario Vidas
+ *
+ */
+public class StaticFileCache {
+
+	/** Format of dates in HTTP headers, e.g. Sun, 06 Nov 1994 08:49:37 GMT. */
+	private static final DateTimeFormatter HTTP_DATE =
+			DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+	/** Requests with more ranges than this are served whole. */
+	private static final int MAX_RANGES = 16;
+
+	private Path root;
+	private long capacity;
+	private int smallFileLimit;
+	private long mappedFileLimit;
+	private long size = 0;
+	private Map<Path, CachedFile> files = new LinkedHashMap<>(16, 0.75f, true);
+	private Lock lock = new ReentrantLock();
+
+	/**
+	 * Constructor with 3 arguments.
+	 * @param root real path of document root
+	 * @param capacity maximum number of cached bytes
+	 * @param smallFileLimit files up to this size are kept on heap
+	 * @param mappedFileLimit files up to this size are memory mapped, larger
+	 *            files are not cached
+	 */
+	public StaticFileCache(Path root, long capacity, int smallFileLimit, long mappedFileLimit) {
+		super();
+		if (root == null) {
+			throw new IllegalArgumentException("Document root cannot be null.");
+		}
+		if (capacity < 0 || smallFileLimit < 0 || mappedFileLimit < 0) {
+			throw new IllegalArgumentException("Cache limits cannot be less than zero.");
+		}
+		this.root = root;
+		this.capacity = capacity;
+		this.smallFileLimit = smallFileLimit;
+		this.mappedFileLimit = mappedFileLimit;
+	}
+
+	/**
+	 * Returns file under given path. If file is cached and was not modified,
+	 * cached file is returned, otherwise file is loaded again. If path does not
+	 * denote readable regular file, or it is link which leads out of document
+	 * root, <code>null</code> is returned.
+	 * @param requestedPath resolved path to file
+	 * @param mimeType mime type of file
+	 * @param cacheControl value of Cache-Control header, <code>null</code> if
+	 *            header is not sent
+	 * @return file if it exists, <code>null</code> otherwise
+	 * @throws IOException exception while reading file
+	 */
+	public CachedFile get(Path requestedPath, String mimeType, String cacheControl) throws IOException {
+		Path path;
+		BasicFileAttributes attributes;
+		try {
+			path = requestedPath.toRealPath();		//follows links
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		if (!path.startsWith(root) || !attributes.isRegularFile()) {
+			return null;
+		}
+		long lastModified = attributes.lastModifiedTime().toMillis();
+
+		lock.lock();
+		try {
+			CachedFile file = files.get(path);
+			if (file != null && file.lastModified == lastModified && file.length == attributes.size()) {
+				return file;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (!Files.isReadable(path)) {
+			return null;
+		}
+		CachedFile file = load(path, mimeType, cacheControl, attributes.size(), lastModified);
+		if (file.body != null) {
+			put(file);
+		}
+		return file;
+	}
+
+	/**
+	 * Loads file from disk. Depending on its size, file is read to heap, memory
+	 * mapped or left on disk.
+	 * @param path path to file
+	 * @param mimeType mime type of file
+	 * @param cacheControl value of Cache-Control header, can be <code>null</code>
+	 * @param length file length
+	 * @param lastModified last modification time in milliseconds
+	 * @return loaded file
+	 * @throws IOException exception while reading file
+	 */
+	private CachedFile load(Path path, String mimeType, String cacheControl, long length, long lastModified)
+			throws IOException {
+		if (length > mappedFileLimit || length > capacity) {
+			return new CachedFile(path, mimeType, cacheControl, length, lastModified, null);
+		}
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer body;
+			if (length <= smallFileLimit) {
+				body = ByteBuffer.allocate((int) length);
+				while (body.hasRemaining() && channel.read(body) != -1) {
+					//read whole file
+				}
+				body.flip();
+			} else {
+				body = channel.map(MapMode.READ_ONLY, 0, length);
+			}
+
+			CachedFile file = new CachedFile(path, mimeType, cacheControl, body.remaining(), lastModified, body);
+			if (length <= smallFileLimit) {
+				file.keepAliveHeader = prepareHeader(file, true);
+				file.closeHeader = prepareHeader(file, false);
+			}
+			return file;
+		}
+	}
+
+	/**
+	 * Prepares response header for given file. Header is generated by request
+	 * context, so it is same as header generated for any other response.
+	 * @param file file
+	 * @param keepAlive whether connection is kept alive
+	 * @return header bytes
+	 * @throws IOException exception while generating header
+	 */
+	private static byte[] prepareHeader(CachedFile file, boolean keepAlive) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(header, null, null, null);
+		rc.setMimeType(file.mimeType);
+		rc.setLength(file.length);
+		rc.setKeepAlive(keepAlive);
+		file.addValidators(rc);
+		rc.finish();
+		return header.toByteArray();
+	}
+
+	/**
+	 * Puts file to cache and evicts least recently used files until cache size
+	 * is within capacity.
+	 * @param file file to put
+	 */
+	private void put(CachedFile file) {
+		lock.lock();
+		try {
+			CachedFile old = files.put(file.path, file);
+			if (old != null) {
+				size -= old.weight();
+			}
+			size += file.weight();
+
+			Iterator<CachedFile> it = files.values().iterator();
+			while (size > capacity && it.hasNext()) {
+				CachedFile eldest = it.next();
+				it.remove();
+				size -= eldest.weight();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Formats given time as HTTP date.
+	 * @param millis time in milliseconds
+	 * @return formatted date
+	 */
+	static String formatDate(long millis) {
+		return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * Parses HTTP date. Only dates in preferred format are accepted, obsolete
+	 * formats are treated as invalid.
+	 * @param date date to parse
+	 * @return time in milliseconds, or -1 if date is invalid
+	 */
+	static long parseDate(String date) {
+		try {
+			return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * File returned by cache. File body is either cached on heap or memory
+	 * mapped, or it is not cached and must be read from disk.
+	 * @author Dario Vidas
+	 *
+	 */
+	public static class CachedFile {
+
+		private Path path;
+		private String mimeType;
+		private String cacheControl;
+		private long length;
+		private long lastModified;
+		private String eTag;
+		private String lastModifiedDate;
+		private ByteBuffer body;
+		private byte[] keepAliveHeader;
+		private byte[] closeHeader;
+
+		/**
+		 * Constructor.
+		 * @param path path to file
+		 * @param mimeType mime type of file
+		 * @param cacheControl value of Cache-Control header, can be
+		 *            <code>null</code>
+		 * @param length file length
+		 * @param lastModified last modification time in milliseconds
+		 * @param body file body, <code>null</code> if file is not cached
+		 */
+		private CachedFile(Path path, String mimeType, String cacheControl, long length, long lastModified,
+				ByteBuffer body) {
+			super();
+			this.path = path;
+			this.mimeType = mimeType;
+			this.cacheControl = cacheControl;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.body = body;
+			this.eTag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+			this.lastModifiedDate = formatDate(lastModified);
+		}
+
+		/**
+		 * Getter for mime type.
+		 * @return mime type
+		 */
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		/**
+		 * Getter for file length.
+		 * @return length
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * Getter for last modification time.
+		 * @return last modification time in milliseconds
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Getter for entity tag. Tag is strong and is made of file length and
+		 * modification time.
+		 * @return entity tag, including quotes
+		 */
+		public String getETag() {
+			return eTag;
+		}
+
+		/**
+		 * Checks whether client's copy of file is still valid according to
+		 * conditional request headers. If-Modified-Since is only considered if
+		 * If-None-Match is not sent.
+		 * @param ifNoneMatch value of If-None-Match header, can be
+		 *            <code>null</code>
+		 * @param ifModifiedSince value of If-Modified-Since header, can be
+		 *            <code>null</code>
+		 * @return <code>true</code> if file was not modified, <code>false</code>
+		 *         otherwise
+		 */
+		public boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+			if (ifNoneMatch != null) {
+				for (String tag : ifNoneMatch.split(",")) {
+					tag = tag.trim();
+					if (tag.startsWith("W/")) {		//weak comparison
+						tag = tag.substring(2);
+					}
+					if (tag.equals("*") || tag.equals(eTag)) {
+						return true;
+					}
+				}
+				return false;
+			}
+
+			if (ifModifiedSince != null) {
+				long since = parseDate(ifModifiedSince);
+				return since != -1 && lastModified / 1000 <= since / 1000;	//dates have second precision
+			}
+			return false;
+		}
+
+		/**
+		 * Writes response 304 Not Modified to request context. Response has no
+		 * body, only validators and cache control are sent.
+		 * @param rc request context
+		 * @throws IOException exception while writing
+		 */
+		public void writeNotModified(RequestContext rc) throws IOException {
+			rc.setStatusCode(304);
+			rc.setStatusText("Not Modified");
+			addValidators(rc);
+			rc.write(new byte[0]);
+		}
+
+		/**
+		 * Checks whether Range header can be applied according to If-Range header.
+		 * If-Range holds either entity tag, which must match strongly, or date,
+		 * which must be equal to modification time.
+		 * @param ifRange value of If-Range header, can be <code>null</code>
+		 * @return <code>true</code> if range can be applied, <code>false</code>
+		 *         if whole file must be sent
+		 */
+		public boolean isRangeValid(String ifRange) {
+			if (ifRange == null) {
+				return true;
+			}
+			ifRange = ifRange.trim();
+			if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+				return ifRange.equals(eTag);	//weak tags never match
+			}
+			long date = parseDate(ifRange);
+			return date != -1 && date / 1000 == lastModified / 1000;
+		}
+
+		/**
+		 * Writes ranges of file requested by Range header to request context. Single
+		 * range is sent as 206 Partial Content, multiple ranges are sent as
+		 * multipart/byteranges. If none of ranges can be satisfied, 416 Range Not
+		 * Satisfiable is sent. If Range header is invalid, nothing is written and
+		 * whole file should be sent instead.
+		 * @param rc request context
+		 * @param range value of Range header
+		 * @return <code>true</code> if response is written, <code>false</code>
+		 *         otherwise
+		 * @throws IOException exception while writing
+		 */
+		public boolean writeRanges(RequestContext rc, String range) throws IOException {
+			List<long[]> ranges = parseRanges(range);
+			if (ranges == null) {
+				return false;
+			}
+
+			addValidators(rc);
+			if (ranges.isEmpty()) {
+				rc.setStatusCode(416);
+				rc.setStatusText("Range Not Satisfiable");
+				rc.addHeader("Content-Range", "bytes */" + length);
+				rc.setLength(0);
+				rc.write(new byte[0]);
+				return true;
+			}
+
+			rc.setStatusCode(206);
+			rc.setStatusText("Partial Content");
+			FileChannel channel = body == null ? FileChannel.open(path, StandardOpenOption.READ) : null;
+			try {
+				if (ranges.size() == 1) {
+					long[] r = ranges.get(0);
+					rc.addHeader("Content-Range", contentRange(r));
+					rc.setLength(r[1] - r[0] + 1);
+					writeRange(rc, channel, r);
+					return true;
+				}
+
+				String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+				List<byte[]> partHeaders = new ArrayList<>();
+				long total = 0;
+				for (long[] r : ranges) {
+					byte[] partHeader = ("\r\n--" + boundary + "\r\nContent-Type: " + mimeType + "\r\nContent-Range: "
+							+ contentRange(r) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+					partHeaders.add(partHeader);
+					total += partHeader.length + r[1] - r[0] + 1;
+				}
+				byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+				rc.setMimeType("multipart/byteranges; boundary=" + boundary);
+				rc.setLength(total + end.length);
+				for (int i = 0; i < ranges.size(); i++) {
+					rc.write(partHeaders.get(i));
+					writeRange(rc, channel, ranges.get(i));
+				}
+				rc.write(end);
+				return true;
+			} finally {
+				if (channel != null) {
+					channel.close();
+				}
+			}
+		}
+
+		/**
+		 * Parses Range header. Ranges that start after the end of file are
+		 * dropped, ranges that end after it are shortened.
+		 * @param range value of Range header
+		 * @return list of satisfiable ranges, each holding first and last byte
+		 *         position, or <code>null</code> if header is invalid or has too
+		 *         many ranges
+		 */
+		private List<long[]> parseRanges(String range) {
+			range = range.trim();
+			if (!range.startsWith("bytes=")) {
+				return null;
+			}
+			String[] specs = range.substring("bytes=".length()).split(",");
+			if (specs.length > MAX_RANGES) {
+				return null;
+			}
+
+			List<long[]> ranges = new ArrayList<>();
+			try {
+				for (String spec : specs) {
+					int dash = spec.indexOf('-');
+					if (dash == -1) {
+						return null;
+					}
+					String first = spec.substring(0, dash).trim();
+					String last = spec.substring(dash + 1).trim();
+
+					long start;
+					long end;
+					if (first.isEmpty()) {		//suffix range, last n bytes
+						long suffix = Long.parseLong(last);
+						if (suffix < 0) {
+							return null;
+						}
+						start = Math.max(0, length - suffix);
+						end = length - 1;
+						if (suffix == 0) {
+							continue;
+						}
+					} else {
+						start = Long.parseLong(first);
+						end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+						if (start < 0 || end < start) {
+							return null;
+						}
+						end = Math.min(end, length - 1);
+					}
+
+					if (start < length) {
+						ranges.add(new long[] { start, end });
+					}
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			return ranges;
+		}
+
+		/**
+		 * Writes bytes of single range to request context. Cached body is written
+		 * from memory, otherwise bytes are transfered from given channel.
+		 * @param rc request context
+		 * @param channel file channel, <code>null</code> if body is cached
+		 * @param range first and last byte position
+		 * @throws IOException exception while writing
+		 */
+		private void writeRange(RequestContext rc, FileChannel channel, long[] range) throws IOException {
+			if (channel != null) {
+				rc.write(channel, range[0], range[1] - range[0] + 1);
+			} else {
+				ByteBuffer part = body.duplicate();
+				part.position((int) range[0]);
+				part.limit((int) range[1] + 1);
+				rc.write(part);
+			}
+		}
+
+		/**
+		 * Creates value of Content-Range header for given range.
+		 * @param range first and last byte position
+		 * @return header value
+		 */
+		private String contentRange(long[] range) {
+			return "bytes " + range[0] + "-" + range[1] + "/" + length;
+		}
+
+		/**
+		 * Adds validators and cache control header of this file to request
+		 * context. Clients are also told that byte ranges are accepted.
+		 * @param rc request context
+		 */
+		private void addValidators(RequestContext rc) {
+			rc.addHeader("Accept-Ranges", "bytes");
+			rc.addHeader("ETag", eTag);
+			rc.addHeader("Last-Modified", lastModifiedDate);
+			if (cacheControl != null) {
+				rc.addHeader("Cache-Control", cacheControl);
+			}
+		}
+
+		/**
+		 * Writes whole file to request context as response body. If file header is
+		 * prepared and request context is in its default state, prepared header is
+		 * written instead of generating new one.
+		 * @param rc request context
+		 * @param defaultHeader whether response header would be same as prepared
+		 *            one, i.e. context has no cookies and only mime type is set
+		 * @throws IOException exception while writing
+		 */
+		public void writeTo(RequestContext rc, boolean defaultHeader) throws IOException {
+			if (body == null) {
+				try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+					addValidators(rc);
+					rc.setLength(length);
+					rc.write(channel, 0, length);
+				}
+				return;
+			}
+
+			if (defaultHeader && keepAliveHeader != null) {
+				rc.write(rc.isKeepAlive() ? keepAliveHeader : closeHeader, body.duplicate());
+			} else {
+				addValidators(rc);
+				rc.setLength(length);
+				rc.write(body.duplicate());
+			}
+		}
+
+		/**
+		 * Returns number of bytes this file takes in cache.
+		 * @return number of bytes
+		 */
+		private long weight() {
+			long weight = length;
+			if (keepAliveHeader != null) {
+				weight += keepAliveHeader.length + closeHeader.length;
+			}
+			return weight;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package webserver;
+
+import java.io.InterruptedIOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Semaphore;
+
+import webserver.Concurrency.Mode;
+
+/**
+ * Runs requests on web worker according to its declared {@link Concurrency}
+ * mode. Thread safe workers are called directly, serialized workers are called
+ * while holding single permit, pooled workers are borrowed from pool and per
+ * request workers are instantiated for each request. Worker is either
+ * <code>IWebWorker</code> or <code>IAsyncWebWorker</code>. Asynchronous
+ * worker keeps its permit or pooled instance until its response is complete.
+ * @author Dario Vidas
+ *
+ */
+public class WorkerHandle {
+
+	private Mode mode;
+	private Constructor<?> constructor;
+	private Object shared;
+	private BlockingQueue<Object> pool;
+	private Semaphore permit;
+
+	/**
+	 * Creates handle for given worker class. Instances needed by declared mode
+	 * are created immediately.
+	 * @param clazz worker class, must have public constructor without arguments
+	 * @param defaultMode mode used if worker does not declare one
+	 * @throws ReflectiveOperationException exception while creating worker
+	 * @throws IllegalArgumentException if class is not worker
+	 */
+	public WorkerHandle(Class<?> clazz, Mode defaultMode) throws ReflectiveOperationException {
+		super();
+		if (!isWorker(clazz)) {
+			throw new IllegalArgumentException(clazz.getName() + " is not web worker.");
+		}
+		Concurrency concurrency = clazz.getAnnotation(Concurrency.class);
+		this.mode = concurrency == null ? defaultMode : concurrency.value();
+		this.constructor = clazz.getConstructor();
+
+		switch (mode) {
+			case THREAD_SAFE:
+				shared = constructor.newInstance();
+				break;
+			case SERIALIZED:
+				shared = constructor.newInstance();
+				permit = new Semaphore(1);		//not lock, asynchronous worker releases it on other thread
+				break;
+			case POOLED:
+				int instances = concurrency.instances();
+				if (instances < 1) {
+					throw new IllegalArgumentException("Pool of " + clazz.getName() + " must have at least 1 instance.");
+				}
+				pool = new ArrayBlockingQueue<>(instances);
+				for (int i = 0; i < instances; i++) {
+					pool.add(constructor.newInstance());
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Checks whether given class is synchronous or asynchronous web worker.
+	 * @param clazz class
+	 * @return <code>true</code> if class is worker, <code>false</code> otherwise
+	 */
+	public static boolean isWorker(Class<?> clazz) {
+		return IWebWorker.class.isAssignableFrom(clazz) || IAsyncWebWorker.class.isAssignableFrom(clazz);
+	}
+
+	/**
+	 * Getter for concurrency mode.
+	 * @return mode
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Processes request with worker. Pooled and serialized workers wait for free
+	 * instance.
+	 * @param context request context
+	 * @return stage which completes when asynchronous worker writes response, or
+	 *         <code>null</code> if response is already written
+	 * @throws InterruptedIOException thread is interrupted while waiting for
+	 *             worker
+	 */
+	public CompletionStage<?> process(RequestContext context) throws InterruptedIOException {
+		try {
+			switch (mode) {
+				case THREAD_SAFE:
+					return invoke(shared, context);
+
+				case SERIALIZED:
+					permit.acquire();
+					return invoke(shared, context, permit::release);
+
+				case POOLED:
+					Object worker = pool.take();
+					return invoke(worker, context, () -> pool.add(worker));
+
+				default:
+					return invoke(constructor.newInstance(), context);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for worker.");
+		} catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException("Cannot create worker.", e);
+		}
+	}
+
+	/**
+	 * Runs given worker.
+	 * @param worker worker
+	 * @param context request context
+	 * @return stage of asynchronous worker, <code>null</code> for synchronous
+	 *         worker
+	 */
+	private static CompletionStage<?> invoke(Object worker, RequestContext context) {
+		if (worker instanceof IAsyncWebWorker) {
+			return ((IAsyncWebWorker) worker).processRequestAsync(context);
+		}
+		((IWebWorker) worker).processRequest(context);
+		return null;
+	}
+
+	/**
+	 * Runs given worker and runs release action when worker is done.
+	 * Synchronous worker is done when it returns or throws, asynchronous
+	 * worker is done when its stage completes, or when it throws before
+	 * returning stage.
+	 * @param worker worker
+	 * @param context request context
+	 * @param release release action
+	 * @return stage of asynchronous worker, <code>null</code> for synchronous
+	 *         worker
+	 */
+	private static CompletionStage<?> invoke(Object worker, RequestContext context, Runnable release) {
+		CompletionStage<?> stage;
+		try {
+			stage = invoke(worker, context);
+		} catch (RuntimeException | Error e) {
+			release.run();
+			throw e;
+		}
+		if (stage == null) {
+			release.run();
+		} else {
+			stage.whenComplete((result, error) -> release.run());
+		}
+		return stage;
+	}
+}
@@ -0,0 +1,224 @@
+package webserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import webserver.Concurrency.Mode;
+
+/**
+ * Resolves web workers run through <code>/ext/[name]</code> urls. Workers are
+ * indexed by their simple class name when resolver is created. Indexed are
+ * workers registered with <code>ServiceLoader</code> and public workers from
+ * configured package. Requests never load classes, they only look up index. If
+ * package cannot be listed, e.g. because it comes from unsupported class path
+ * entry, classes are loaded on first request and both found and missing names
+ * are remembered. Workers can be synchronous or asynchronous, they are run according to their declared
+ * {@link Concurrency} mode, workers which do not declare it are instantiated
+ * for every request.
+ * @author Dario Vidas
+ *
+ */
+public class WorkerResolver {
+
+	/** Maximum number of remembered missing names, set is cleared when full. */
+	private static final int MAX_MISSES = 1024;
+
+	private ClassLoader classLoader;
+	private String workerPackage;
+	private boolean indexed;
+	private Map<String, WorkerHandle> workers = new ConcurrentHashMap<>();
+	private Set<String> misses = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Constructor with 2 arguments. Indexes all available workers.
+	 * @param classLoader class loader used to find workers
+	 * @param workerPackage package with workers, can be <code>null</code> if only
+	 *            workers registered with <code>ServiceLoader</code> are used
+	 */
+	public WorkerResolver(ClassLoader classLoader, String workerPackage) {
+		super();
+		this.classLoader = classLoader;
+		this.workerPackage = workerPackage;
+
+		loadServices();
+		if (workerPackage == null) {
+			indexed = true;
+		} else {
+			try {
+				indexed = scanPackage();
+			} catch (IOException | URISyntaxException e) {
+				e.printStackTrace();	//Log server exception, workers will be loaded lazily
+				indexed = false;
+			}
+		}
+	}
+
+	/**
+	 * Returns handle of worker with given simple class name.
+	 * @param name simple class name of worker
+	 * @return worker handle, or <code>null</code> if there is no such worker
+	 */
+	public WorkerHandle resolve(String name) {
+		WorkerHandle handle = workers.get(name);
+		if (handle == null && !indexed && !misses.contains(name)) {
+			handle = load(name);
+		}
+		return handle;
+	}
+
+	/**
+	 * Indexes workers registered with <code>ServiceLoader</code>.
+	 */
+	private void loadServices() {
+		try {
+			for (IWebWorker worker : ServiceLoader.load(IWebWorker.class, classLoader)) {
+				index(worker.getClass());
+			}
+			for (IAsyncWebWorker worker : ServiceLoader.load(IAsyncWebWorker.class, classLoader)) {
+				index(worker.getClass());
+			}
+		} catch (ServiceConfigurationError e) {
+			e.printStackTrace();	//Log server exception
+		}
+	}
+
+	/**
+	 * Indexes all workers from configured package. Package is listed in every
+	 * directory and jar file of class path that contains it. Subpackages are
+	 * not listed.
+	 * @return <code>true</code> if package is listed, <code>false</code> if it
+	 *         is in class path entry which cannot be listed
+	 * @throws IOException exception while listing package
+	 * @throws URISyntaxException invalid class path entry
+	 */
+	private boolean scanPackage() throws IOException, URISyntaxException {
+		String directory = workerPackage.replace('.', '/');
+		Enumeration<URL> urls = classLoader.getResources(directory);
+		boolean listed = false;
+
+		while (urls.hasMoreElements()) {
+			URL url = urls.nextElement();
+			if (url.getProtocol().equals("file")) {
+				String[] files = new File(url.toURI()).list();
+				if (files != null) {
+					for (String file : files) {
+						indexClassFile(file);
+					}
+				}
+				listed = true;
+			} else if (url.getProtocol().equals("jar")) {
+				URLConnection connection = url.openConnection();
+				JarFile jar = ((JarURLConnection) connection).getJarFile();
+				Enumeration<JarEntry> entries = jar.entries();
+				while (entries.hasMoreElements()) {
+					String file = entries.nextElement().getName();
+					if (file.startsWith(directory + "/")) {
+						indexClassFile(file.substring(directory.length() + 1));
+					}
+				}
+				listed = true;
+			} else {
+				return false;
+			}
+		}
+		return listed;
+	}
+
+	/**
+	 * Indexes class from given class file of worker package, if it is a worker.
+	 * Nested classes and files from subdirectories are skipped.
+	 * @param file class file name, relative to package directory
+	 */
+	private void indexClassFile(String file) {
+		if (!file.endsWith(".class") || file.indexOf('/') != -1 || file.indexOf('$') != -1) {
+			return;
+		}
+		String name = file.substring(0, file.length() - ".class".length());
+		try {
+			index(classLoader.loadClass(workerPackage + "." + name));
+		} catch (ClassNotFoundException | LinkageError e) {
+			e.printStackTrace();	//Log server exception
+		}
+	}
+
+	/**
+	 * Loads worker with given name from worker package. Result is remembered,
+	 * whether worker is found or not.
+	 * @param name simple class name of worker
+	 * @return worker handle, or <code>null</code> if there is no such worker
+	 */
+	private WorkerHandle load(String name) {
+		WorkerHandle handle = null;
+		if (isIdentifier(name)) {
+			try {
+				handle = index(classLoader.loadClass(workerPackage + "." + name));
+			} catch (ClassNotFoundException | LinkageError e) {
+				//missing worker
+			}
+		}
+
+		if (handle == null) {
+			if (misses.size() >= MAX_MISSES) {
+				misses.clear();
+			}
+			misses.add(name);
+		}
+		return handle;
+	}
+
+	/**
+	 * Adds given class to index if it is public concrete worker with public
+	 * constructor without arguments.
+	 * @param clazz class to index
+	 * @return handle of indexed worker, or <code>null</code> if class is not
+	 *         worker
+	 */
+	private WorkerHandle index(Class<?> clazz) {
+		int modifiers = clazz.getModifiers();
+		if (!WorkerHandle.isWorker(clazz) || !Modifier.isPublic(modifiers)
+				|| Modifier.isAbstract(modifiers) || clazz.isInterface()) {
+			return null;
+		}
+
+		try {
+			WorkerHandle handle = new WorkerHandle(clazz, Mode.PER_REQUEST);
+			workers.put(clazz.getSimpleName(), handle);
+			return handle;
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (ReflectiveOperationException | IllegalArgumentException e) {
+			e.printStackTrace();	//Log server exception
+			return null;
+		}
+	}
+
+	/**
+	 * Checks whether given name is valid simple class name.
+	 * @param name name to check
+	 * @return <code>true</code> if name is valid, <code>false</code> otherwise
+	 */
+	private static boolean isIdentifier(String name) {
+		if (name.isEmpty() || !Character.isJavaIdentifierStart(name.charAt(0))) {
+			return false;
+		}
+		for (int i = 1; i < name.length(); i++) {
+			if (!Character.isJavaIdentifierPart(name.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -8,6 +8,8 @@ import java.io.IOException;
 
 import javax.imageio.ImageIO;
 
+import webserver.Concurrency;
+import webserver.Concurrency.Mode;
 import webserver.IWebWorker;
 import webserver.RequestContext;
 
@@ -16,6 +18,7 @@ import webserver.RequestContext;
  * @author Dario Vidas
  * 
  */
+@Concurrency(Mode.THREAD_SAFE)
 public class CircleWorker implements IWebWorker {
 
 	@Override
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
+import webserver.Concurrency;
+import webserver.Concurrency.Mode;
 import webserver.IWebWorker;
 import webserver.RequestContext;
 
@@ -12,6 +14,7 @@ import webserver.RequestContext;
  * @author Dario Vidas
  * 
  */
+@Concurrency(Mode.THREAD_SAFE)
 public class HelloWorker implements IWebWorker {
 
 	@Override